@@ -0,0 +1,186 @@
+package wifi;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import rf.RF;
+
+/**
+ * JMH benchmarks of the PacketManipulator encode, decode, classifier and CRC paths
+ * Every benchmark gets its own forked JVMs, so one can't warm up or pollute the profile of the
+ * next, and returns what it computes so JMH sinks it into a Blackhole.  Packets are read from
+ * state fields rather than constants so the JIT can't fold a classifier away.  Run it with
+ *   java -cp bench/target/benchmarks.jar:classFiles.jar org.openjdk.jmh.Main CodecBenchmark -prof gc
+ * after mvn -B package in bench/; -prof gc adds the bytes allocated per operation.
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class CodecBenchmark {
+	private static final short DEST = 17;
+	private static final short SOURCE = 42;
+
+	@Param({"0", "64", "256", "1024", "2038"}) //Empty up to a full packet, RF.aMPDUMaximumLength - SIZE_OVERHEAD
+	public int payloadBytes;
+
+	private byte[] payload;
+	private byte[] packet; //A data packet carrying payload
+	private ByteBuffer payloadBuffer; //payload for the ByteBuffer encoder
+	private ByteBuffer packetBuffer; //The same packet for the ByteBuffer decoders
+	private ByteBuffer heapOut = ByteBuffer.allocate(RF.aMPDUMaximumLength); //Reused by encodePacket
+	private int seqNum = 0; //Changes every call so no two packets built are the same
+
+	@Setup
+	public void setUp(){
+		payload = new byte[payloadBytes];
+		new Random(325).nextBytes(payload);
+		packet = PacketManipulator.buildDataPacket(DEST, SOURCE, payload, payloadBytes, 99);
+		payloadBuffer = ByteBuffer.wrap(payload);
+		packetBuffer = ByteBuffer.wrap(packet);
+	}
+
+	@Benchmark
+	public byte[] buildDataPacket(){
+		return PacketManipulator.buildDataPacket(DEST, SOURCE, payload, payloadBytes, seqNum++ & 0xFFF);
+	}
+
+	@Benchmark
+	public int encodePacketReusedBuffer(){
+		heapOut.clear();
+		return PacketManipulator.encodePacket(heapOut, 0, DEST, SOURCE, payload, 0, payloadBytes, seqNum++ & 0xFFF);
+	}
+
+	@Benchmark
+	public int encodePacketFromBuffer(){
+		heapOut.clear();
+		return PacketManipulator.encodePacket(heapOut, 0, DEST, SOURCE, payloadBuffer, seqNum++ & 0xFFF);
+	}
+
+	@Benchmark
+	public short getDestAddr(){
+		return PacketManipulator.getDestAddr(packet);
+	}
+
+	@Benchmark
+	public short getSourceAddr(){
+		return PacketManipulator.getSourceAddr(packet);
+	}
+
+	@Benchmark
+	public int getSeqNum(){
+		return PacketManipulator.getSeqNum(packet);
+	}
+
+	@Benchmark
+	public short getDestAddrBuffer(){
+		return PacketManipulator.getDestAddr(packetBuffer);
+	}
+
+	@Benchmark
+	public short getSourceAddrBuffer(){
+		return PacketManipulator.getSourceAddr(packetBuffer);
+	}
+
+	@Benchmark
+	public int getSeqNumBuffer(){
+		return PacketManipulator.getSeqNum(packetBuffer);
+	}
+
+	@Benchmark
+	public byte[] getData(){
+		return PacketManipulator.getData(packet);
+	}
+
+	@Benchmark
+	public ByteBuffer getDataView(){
+		return PacketManipulator.getDataView(packetBuffer);
+	}
+
+	@Benchmark
+	public boolean isDataPacket(){
+		return PacketManipulator.isDataPacket(packet);
+	}
+
+	@Benchmark
+	public boolean carriesData(){
+		return PacketManipulator.carriesData(packet);
+	}
+
+	@Benchmark
+	public boolean hasValidCRC32(){
+		return PacketManipulator.hasValidCRC(packet, false);
+	}
+
+	@Benchmark
+	public boolean hasValidCRC32C(){
+		return PacketManipulator.hasValidCRC(packet, true);
+	}
+
+	/**
+	 * The control frames, which don't come in payload sizes
+	 */
+	@State(Scope.Thread)
+	public static class ControlFrames {
+		private byte[] ack;
+		private byte[] beacon;
+		private ByteBuffer beaconBuffer; //The same beacon for the ByteBuffer decoder
+		private int seqNum = 0;
+		private long time = 123456789L;
+
+		@Setup
+		public void setUp(){
+			ack = PacketManipulator.buildACKPacket(DEST, SOURCE, 7);
+			beacon = PacketManipulator.buildBeaconPacket(DEST, SOURCE, time);
+			beaconBuffer = ByteBuffer.wrap(beacon);
+		}
+
+		@Benchmark
+		public byte[] buildACKPacket(){
+			return PacketManipulator.buildACKPacket(DEST, SOURCE, seqNum++ & 0xFFF);
+		}
+
+		@Benchmark
+		public byte[] buildBeaconPacket(){
+			return PacketManipulator.buildBeaconPacket(DEST, SOURCE, time++);
+		}
+
+		@Benchmark
+		public boolean isACKPacket(){
+			return PacketManipulator.isACKPacket(ack);
+		}
+
+		@Benchmark
+		public boolean isBeaconFrame(){
+			return PacketManipulator.isBeaconFrame(beacon);
+		}
+
+		@Benchmark
+		public long getTimeFromBeacon(){
+			return PacketManipulator.getTimeFromBeacon(beacon);
+		}
+
+		@Benchmark
+		public long getTimeFromBeaconBuffer(){
+			return PacketManipulator.getTimeFromBeacon(beaconBuffer);
+		}
+	}
+}
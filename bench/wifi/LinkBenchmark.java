@@ -0,0 +1,414 @@
+package wifi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * End-to-end throughput and latency of whole LinkLayer stations, real Sender and Receiver threads included
+ * The coordinator sweeps station count, payload size and offered load.  Station i sends to
+ * station i+1 (the last one to the first) with sendAsync() at the offered load, times every send
+ * to its ACK, and counts what recv() hands it.  One CSV row per combination goes to the results file.
+ * The stations run in one of three modes:
+ *   process  one JVM per station, talking over the RF layer, which broadcasts on the local network
+ *   threads  every station in this JVM on a SharedMedium, in real time
+ *   sim      every station in this JVM in a Simulation, in simulated time from the given seed
+ * Run it with
+ *   java -cp out:classFiles.jar wifi.LinkBenchmark [mode=process] [stations=2,3] [sizes=64,512,2038] [loads=5,20] [duration=10] [seed=1] [out=linkbench.csv]
+ * where loads are frames per second offered by each station and duration is in seconds.  The last
+ * columns are what the station JVMs allocated and collected from startup to the end of the drain
+ * time: bytes per frame delivered, KB per second of wall time, and young and full collections.
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public class LinkBenchmark {
+	private static final short BASE_MAC = 300; //Station i uses BASE_MAC+i
+	private static final int STARTUP_TIME = 3000; //ms every station gets to come up before anyone sends
+	private static final int DRAIN_TIME = 5000; //ms after the run for outstanding frames to be ACK'ed or given up on
+	static final String CSV_HEADER = "mode,stations,payload_bytes,offered_fps_per_station,duration_s,frames_offered,frames_queued,frames_delivered,frames_failed,frames_received,goodput_bytes_per_s,goodput_frames_per_s,latency_p50_ms,latency_p90_ms,latency_p99_ms,latency_max_ms,alloc_bytes_per_frame,alloc_kb_per_s,gc_pauses,gc_pause_ms";
+
+	//Where a station's time comes from: the wall clock or a simulation
+	private interface Timebase{
+		long now(); //ms
+		void sleep(long millis) throws InterruptedException;
+		void start(Runnable work, String name);
+	}
+
+	//The wall clock, with a daemon thread per task
+	private static class WallClock implements Timebase{
+		public long now(){
+			return System.currentTimeMillis();
+		}
+
+		public void sleep(long millis) throws InterruptedException{
+			Thread.sleep(millis);
+		}
+
+		public void start(Runnable work, String name){
+			Thread thread = new Thread(work, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	//A simulation's clock, with its threads
+	private static class SimulatedClock implements Timebase{
+		private Simulation sim;
+
+		SimulatedClock(Simulation sim){
+			this.sim = sim;
+		}
+
+		public long now(){
+			return sim.clock();
+		}
+
+		public void sleep(long millis){
+			sim.sleep(millis);
+		}
+
+		public void start(Runnable work, String name){
+			sim.start(work, name);
+		}
+	}
+
+	/**
+	 * @param args key=value settings for the coordinator, or "station" followed by a station's settings
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("station")){
+			runStationProcess(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(args[5]));
+			return;
+		}
+
+		String mode = "process";
+		int[] stationCounts = {2};
+		int[] sizes = {64, 512, 2038};
+		int[] loads = {5, 20};
+		int duration = 10;
+		long seed = 1;
+		String outFile = "linkbench.csv";
+		for(String arg : args){
+			String[] setting = arg.split("=", 2);
+			if(setting[0].equals("mode")) mode = setting[1];
+			else if(setting[0].equals("stations")) stationCounts = parseList(setting[1]);
+			else if(setting[0].equals("sizes")) sizes = parseList(setting[1]);
+			else if(setting[0].equals("loads")) loads = parseList(setting[1]);
+			else if(setting[0].equals("duration")) duration = Integer.parseInt(setting[1]);
+			else if(setting[0].equals("seed")) seed = Long.parseLong(setting[1]);
+			else if(setting[0].equals("out")) outFile = setting[1];
+			else throw new IllegalArgumentException("Unknown setting "+arg);
+		}
+		if(!mode.equals("process") && !mode.equals("threads") && !mode.equals("sim"))
+			throw new IllegalArgumentException("Unknown mode "+mode+", expecting process, threads or sim");
+
+		PrintWriter results = new PrintWriter(new FileWriter(outFile));
+		results.println(CSV_HEADER);
+		System.out.println(CSV_HEADER);
+		for(int stations : stationCounts){
+			for(int size : sizes){
+				for(int load : loads){
+					Totals totals;
+					long[] before = memoryCounters();
+					if(mode.equals("process")) totals = runProcesses(stations, size, load, duration);
+					else if(mode.equals("threads")) totals = runThreads(stations, size, load, duration, seed);
+					else totals = runSimulation(stations, size, load, duration, seed);
+					if(!mode.equals("process")) //Each station process reports its own
+						totals.add(memoryLine(before));
+					String row = mode+","+totals.row(stations, size, load, duration);
+					results.println(row);
+					results.flush();
+					System.out.println(row);
+				}
+			}
+		}
+		results.close();
+		System.out.println("Results written to "+outFile);
+		System.exit(0); //In-process stations never stop on their own
+	}
+
+	/**
+	 * Starts one JVM per station, waits for them all and combines their reports
+	 * @param stations the number of stations
+	 * @param size the payload size in bytes
+	 * @param load frames per second each station offers
+	 * @param duration seconds each station sends for
+	 * @return the combined reports
+	 */
+	private static Totals runProcesses(int stations, int size, int load, int duration) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home")+File.separator+"bin"+File.separator+"java";
+		String classPath = System.getProperty("java.class.path");
+		long startAt = System.currentTimeMillis() + STARTUP_TIME; //Wall clock time every station starts sending at
+		List<Process> processes = new ArrayList<Process>();
+		for(int i=0; i<stations; i++){
+			ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath, LinkBenchmark.class.getName(), "station",
+					Integer.toString(i), Integer.toString(stations), Integer.toString(size), Integer.toString(load), Integer.toString(duration));
+			builder.redirectErrorStream(true);
+			builder.environment().put("LINKBENCH_START", Long.toString(startAt));
+			processes.add(builder.start());
+		}
+
+		Totals totals = new Totals();
+		for(Process process : processes){
+			BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			String line;
+			while((line = reader.readLine()) != null)
+				totals.add(line);
+			process.waitFor();
+		}
+		return totals;
+	}
+
+	/**
+	 * Runs every station in this JVM on a SharedMedium in real time
+	 * Stations come up at random times during the startup time, as separate machines would
+	 * @return the combined reports
+	 */
+	private static Totals runThreads(int stations, int size, int load, int duration, long seed) throws InterruptedException {
+		SharedMedium medium = new SharedMedium();
+		Timebase time = new WallClock();
+		Random random = new Random(seed);
+		long startAt = time.now() + STARTUP_TIME;
+		Totals totals = new Totals();
+		CountDownLatch done = new CountDownLatch(stations);
+		for(int i=0; i<stations; i++){
+			int index = i;
+			long upAt = time.now() + random.nextInt(STARTUP_TIME/2);
+			time.start(() -> {
+				try{
+					time.sleep(Math.max(upAt - time.now(), 0));
+					LinkLayer station = new LinkLayer((short)(BASE_MAC + index), new PrintWriter(OutputStream.nullOutputStream(), true), medium.attach());
+					for(String line : runStation(station, (short)(BASE_MAC + (index + 1) % stations), size, load, startAt, startAt + duration*1000L, time))
+						totals.add(line);
+				}catch(InterruptedException e){
+					System.out.println("Interrupted while running station "+index+" "+e);
+				}
+				done.countDown();
+			}, "Station "+i);
+		}
+		done.await();
+		return totals;
+	}
+
+	/**
+	 * Runs every station in a Simulation, which plays the whole run in simulated time
+	 * Stations come up at random times during the startup time, as separate machines would
+	 * @return the combined reports
+	 */
+	private static Totals runSimulation(int stations, int size, int load, int duration, long seed){
+		Simulation sim = new Simulation(seed);
+		Timebase time = new SimulatedClock(sim);
+		Random random = new Random(seed);
+		long startAt = STARTUP_TIME;
+		Totals totals = new Totals();
+		for(int i=0; i<stations; i++){
+			int index = i;
+			long upAt = random.nextInt(STARTUP_TIME/2);
+			time.start(() -> {
+				try{
+					time.sleep(upAt);
+					LinkLayer station = new LinkLayer((short)(BASE_MAC + index), new PrintWriter(OutputStream.nullOutputStream(), true), sim);
+					for(String line : runStation(station, (short)(BASE_MAC + (index + 1) % stations), size, load, startAt, startAt + duration*1000L, time))
+						totals.add(line);
+				}catch(InterruptedException e){
+					System.out.println("Interrupted while running station "+index+" "+e);
+				}
+			}, "Station "+i);
+		}
+		sim.run(startAt + duration*1000L + DRAIN_TIME + 1);
+		return totals;
+	}
+
+	/**
+	 * One station in its own JVM: prints its report for the coordinator to read
+	 * @param index the station number
+	 * @param stations the number of stations
+	 * @param size the payload size in bytes
+	 * @param load frames per second to offer
+	 * @param duration seconds to send for
+	 */
+	private static void runStationProcess(int index, int stations, int size, int load, int duration) throws InterruptedException {
+		short ourMAC = (short)(BASE_MAC + index);
+		short dest = (short)(BASE_MAC + (index + 1) % stations);
+		long[] before = memoryCounters();
+		LinkLayer station = new LinkLayer(ourMAC, new PrintWriter(OutputStream.nullOutputStream(), true));
+		long startAt = Long.parseLong(System.getenv("LINKBENCH_START"));
+		for(String line : runStation(station, dest, size, load, startAt, startAt + duration*1000L, new WallClock()))
+			System.out.println(line);
+		System.out.println(memoryLine(before));
+		System.exit(0); //The LinkLayer threads never stop on their own
+	}
+
+	/**
+	 * One station: sends to the next station at the offered load and counts what it receives
+	 * @param station the station
+	 * @param dest where it sends
+	 * @param size the payload size in bytes
+	 * @param load frames per second to offer
+	 * @param startAt when to start sending, in time's ms
+	 * @param endAt when to stop sending
+	 * @param time the clock to pace sends by
+	 * @return a RESULT line with its counters and a LATENCY line with every send-to-ACK time
+	 */
+	private static String[] runStation(LinkLayer station, short dest, int size, int load, long startAt, long endAt, Timebase time) throws InterruptedException {
+		long[] received = new long[2]; //Frames and bytes that arrived while the run was on
+		time.start(() -> {
+			while(true){
+				Vector<Transmission> batch = station.recvBatch(64, -1);
+				long now = time.now();
+				if(now < startAt || now >= endAt) //Goodput is per second of the run, so what arrives during the drain time isn't counted
+					continue;
+				synchronized(received){
+					for(Transmission t : batch){
+						received[0]++;
+						received[1] += t.getBuf().length;
+					}
+				}
+			}
+		}, "Receiving "+station.ourMAC);
+
+		time.sleep(Math.max(startAt - time.now(), 0));
+		byte[] payload = new byte[size];
+		List<CompletableFuture<DeliveryReport>> sends = new ArrayList<CompletableFuture<DeliveryReport>>();
+		double interval = 1000.0 / load; //ms between frames
+		double next = time.now();
+		while(time.now() < endAt){
+			payload[0] = (byte) sends.size();
+			sends.add(station.sendAsync(dest, payload, size));
+			next += interval;
+			long wait = (long) next - time.now();
+			if(wait > 0)
+				time.sleep(wait);
+		}
+		time.sleep(DRAIN_TIME);
+
+		int queued = 0, delivered = 0, failed = 0;
+		StringBuilder latencies = new StringBuilder("LATENCY");
+		for(CompletableFuture<DeliveryReport> send : sends){
+			DeliveryReport report = send.getNow(null);
+			if(report == null){ //Still outstanding after the drain time
+				queued++;
+				continue;
+			}
+			if(report.getStatus() != LinkLayer.INSUFFICIENT_BUFFER_SPACE)
+				queued++;
+			if(report.isDelivered()){
+				delivered++;
+				latencies.append(' ').append(report.getLatency());
+			}
+			else if(report.getStatus() == LinkLayer.TX_FAILED)
+				failed++;
+		}
+		synchronized(received){
+			return new String[]{"RESULT "+sends.size()+" "+queued+" "+delivered+" "+failed+" "+received[0]+" "+received[1], latencies.toString()};
+		}
+	}
+
+	/**
+	 * @return bytes allocated by this JVM's live threads, garbage collections and ms spent in them so far
+	 */
+	private static long[] memoryCounters(){
+		long collections = 0, collecting = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()){
+			collections += collector.getCollectionCount();
+			collecting += collector.getCollectionTime();
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long allocated = 0;
+		for(long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+			allocated += Math.max(bytes, 0); //-1 for a thread that has just ended
+		return new long[]{allocated, collections, collecting, System.currentTimeMillis()};
+	}
+
+	/**
+	 * @param before memoryCounters() when the run started
+	 * @return a MEMORY line with what was allocated and collected since
+	 */
+	private static String memoryLine(long[] before){
+		long[] after = memoryCounters();
+		return "MEMORY "+(after[0] - before[0])+" "+(after[1] - before[1])+" "+(after[2] - before[2])+" "+(after[3] - before[3]);
+	}
+
+	/**
+	 * @param list comma separated integers
+	 * @return the integers
+	 */
+	private static int[] parseList(String list){
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for(int i=0; i<parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+		return values;
+	}
+
+	//Station reports added up for one combination
+	static class Totals{
+		long offered, queued, delivered, failed, framesReceived, bytesReceived;
+		long allocated, collections, collecting, wallMillis; //wallMillis is the longest any JVM measured
+		List<Long> latencies = new ArrayList<Long>();
+
+		/**
+		 * Adds one line of a station's output, ignoring anything that isn't a report
+		 * In-process stations report from their own threads, hence synchronized
+		 * @param line the line
+		 */
+		synchronized void add(String line){
+			String[] fields = line.trim().split(" ");
+			if(fields[0].equals("RESULT") && fields.length == 7){
+				offered += Long.parseLong(fields[1]);
+				queued += Long.parseLong(fields[2]);
+				delivered += Long.parseLong(fields[3]);
+				failed += Long.parseLong(fields[4]);
+				framesReceived += Long.parseLong(fields[5]);
+				bytesReceived += Long.parseLong(fields[6]);
+			}
+			else if(fields[0].equals("MEMORY") && fields.length == 5){
+				allocated += Long.parseLong(fields[1]);
+				collections += Long.parseLong(fields[2]);
+				collecting += Long.parseLong(fields[3]);
+				wallMillis = Math.max(wallMillis, Long.parseLong(fields[4]));
+			}
+			else if(fields[0].equals("LATENCY")){
+				for(int i=1; i<fields.length; i++)
+					latencies.add(Long.parseLong(fields[i]));
+			}
+		}
+
+		/**
+		 * @return the CSV row for these totals, less the mode
+		 */
+		synchronized String row(int stations, int size, int load, int duration){
+			Collections.sort(latencies);
+			return stations+","+size+","+load+","+duration+","+offered+","+queued+","+delivered+","+failed+","+framesReceived+","
+					+String.format("%.1f,%.2f", (double) bytesReceived / duration, (double) framesReceived / duration)+","
+					+percentile(50)+","+percentile(90)+","+percentile(99)+","+percentile(100)+","
+					+(delivered > 0 ? allocated / delivered : -1)+","+String.format("%.1f", allocated / 1e3 / Math.max(wallMillis, 1) * 1000)+","
+					+collections+","+collecting;
+		}
+
+		/**
+		 * @param p the percentile, 0-100
+		 * @return that percentile of the sorted latencies in ms, -1 if there are none
+		 */
+		long percentile(int p){
+			if(latencies.isEmpty())
+				return -1;
+			int index = (int) Math.ceil(p / 100.0 * latencies.size()) - 1;
+			return latencies.get(Math.max(index, 0));
+		}
+	}
+}
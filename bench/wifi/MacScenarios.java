@@ -0,0 +1,460 @@
+package wifi;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import rf.RF;
+
+/**
+ * MAC behaviour checked on whole stations in a Simulation, where every time is exact and a run
+ * with the same seed always plays out the same way
+ * Each scenario prints what it measured and checks it against what the MAC promises; the run
+ * exits with status 1 if any check fails.  Run it with
+ *   java -cp out:classFiles.jar wifi.MacScenarios [scenario...]
+ * to run the named scenarios, or all of them if none are named.
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public class MacScenarios {
+	private static final long SEED = 1;
+	private static final long NANOS_PER_MS = 1000000;
+	private static final int BEST_EFFORT_AIFS = RF.aSIFSTime + 2*RF.aSlotTime; //SIFS plus best effort's AIFSN of 2 slots
+
+	private static int failures = 0;
+
+	/**
+	 * @param args the scenarios to run, all of them if there are none
+	 */
+	public static void main(String[] args){
+		Map<String, Runnable> scenarios = new LinkedHashMap<String, Runnable>();
+		scenarios.put("wakeup", MacScenarios::wakeup);
+		scenarios.put("receive", MacScenarios::receive);
+		scenarios.put("reorder", MacScenarios::reorder);
+		scenarios.put("firstloss", MacScenarios::firstLoss);
+		scenarios.put("fragments", MacScenarios::fragments);
+		scenarios.put("bounds", MacScenarios::bounds);
+		scenarios.put("deadpeer", MacScenarios::deadPeer);
+		scenarios.put("blockack", MacScenarios::blockAck);
+		scenarios.put("contention", MacScenarios::contention);
+
+		for(String name : args.length > 0 ? Arrays.asList(args) : scenarios.keySet()){
+			Runnable scenario = scenarios.get(name);
+			if(scenario == null)
+				throw new IllegalArgumentException("Unknown scenario "+name+", expecting one of "+scenarios.keySet());
+			System.out.println("== "+name);
+			scenario.run();
+		}
+		System.out.println(failures == 0 ? "All checks passed" : failures+" checks failed");
+		System.exit(failures == 0 ? 0 : 1); //Simulated stations never stop on their own
+	}
+
+	/**
+	 * A frame handed to send() on an idle medium starts going out within DIFS plus backoff, which
+	 * is right away once the medium has been idle that long, instead of whenever the Sender next polls
+	 */
+	private static void wakeup(){
+		Simulation sim = new Simulation(SEED);
+		LinkLayer a = station(sim, 1);
+		sim.run(137); //Stations that come up together would send their beacons together forever
+		LinkLayer b = station(sim, 2);
+		a.command(3, 0); //No beacons to make the medium busy when we send
+		b.command(3, 0);
+		drain(sim, b);
+
+		long[] sendTimes = new long[20];
+		long[] airTimes = new long[sendTimes.length];
+		Radio monitor = sim.medium().attach(); //Hears when each of a's data frames went on the air
+		sim.start(() -> {
+			for(int heard = 0; heard < airTimes.length; ){
+				byte[] packet = monitor.receive();
+				if(PacketManipulator.isDataPacket(packet) && PacketManipulator.getSourceAddr(packet) == a.ourMAC && !PacketManipulator.isRetry(packet))
+					airTimes[heard++] = sim.nanos() - airtime(packet.length);
+			}
+		}, "Monitor");
+		sim.start(() -> {
+			for(int i=0; i<sendTimes.length; i++){
+				sim.sleep(2500 + 37*i); //Long enough for the last exchange to finish
+				sendTimes[i] = sim.nanos();
+				a.send(b.ourMAC, new byte[100], 100);
+			}
+		}, "App");
+		sim.run(60000);
+
+		long worst = 0;
+		for(int i=0; i<sendTimes.length; i++)
+			worst = Math.max(worst, airTimes[i] - sendTimes[i]);
+		System.out.printf("send() to first transmission: worst %.3f ms over %d frames%n", worst / (double)NANOS_PER_MS, sendTimes.length);
+		check(worst >= 0 && worst <= (BEST_EFFORT_AIFS + RF.aCWmin*RF.aSlotTime)*NANOS_PER_MS, "every frame starts within DIFS plus a CWmin backoff of send()");
+		check(worst < NANOS_PER_MS, "on a medium idle for longer than DIFS every frame starts within 1 ms of send()");
+	}
+
+	/**
+	 * The Receiver takes frames as fast as the medium carries them: a run of back to back
+	 * broadcasts reaches the app at the rate it went out rather than a frame per Receiver sleep
+	 */
+	private static void receive(){
+		Simulation sim = new Simulation(SEED);
+		LinkLayer b = station(sim, 2);
+		b.command(3, 0); //Only the frames we send on the air
+		int frames = 1000;
+		long[] received = new long[2]; //Frames received and when the last one came in
+		sim.start(() -> {
+			while(true){
+				received[0] += b.recvBatch(64, -1).size();
+				received[1] = sim.nanos();
+			}
+		}, "Receiving "+b.ourMAC);
+		Radio sender = sim.medium().attach(); //Sends faster than any station could, nothing between the frames
+		long[] sent = new long[2]; //When the first and the last frame went out
+		sim.start(() -> {
+			sim.sleep(2000); //After the beacon a station sends 1 s in whatever its interval
+			sent[0] = sim.nanos();
+			for(int i=0; i<frames; i++)
+				sender.transmit(PacketManipulator.buildDataPacket((short)LinkLayer.BROADCAST_ADDR, (short)1, new byte[100], 100, i % LinkLayer.SEQ_NUM_SPACE));
+			sent[1] = sim.nanos();
+		}, "Sending");
+		sim.run(60000);
+
+		double offered = frames / ((sent[1] - sent[0]) / 1e9);
+		double accepted = received[0] / ((received[1] - sent[0]) / 1e9);
+		System.out.println(sim.medium().report());
+		System.out.printf("%d frames sent at %.0f frames/s, %d received at %.0f frames/s, %d dropped for a full receive queue%n",
+				frames, offered, received[0], accepted, b.metrics.get(MacMetrics.RX_OVERFLOW_DROPS));
+		check(received[0] == frames, "every frame sent reaches the app");
+		check(accepted >= offered*9/10, "frames are received at least 90% as fast as they are sent");
+	}
+
+	/**
+	 * A frame its sender gives up on doesn't hold back the frames sent after it: the receiver
+	 * releases them once it has waited out every retry of the missing one
+	 */
+	private static void reorder(){
+		Simulation sim = new Simulation(SEED);
+		Radio lossy = new LossyRadio(sim.medium().attach(), packet -> PacketManipulator.isDataPacket(packet) && PacketManipulator.getSeqNum(packet) == 1);
+		LinkLayer a = new LinkLayer((short)1, new PrintWriter(OutputStream.nullOutputStream(), true), lossy, new MacTimer(sim));
+		sim.run(137);
+		LinkLayer b = station(sim, 2);
+
+		Vector<Byte> received = new Vector<Byte>(); //First byte of each payload b received
+		long[] lastArrival = new long[1];
+		sim.start(() -> {
+			while(true){
+				for(Transmission t : b.recvBatch(64, -1))
+					received.add(t.getBuf()[0]);
+				lastArrival[0] = sim.nanos();
+			}
+		}, "Receiving "+b.ourMAC);
+		Vector<CompletableFuture<DeliveryReport>> reports = new Vector<CompletableFuture<DeliveryReport>>();
+		sim.start(() -> {
+			for(int i=0; i<3; i++)
+				reports.add(a.sendAsync(b.ourMAC, new byte[]{(byte)i}, 1));
+		}, "App");
+		sim.run(120000);
+
+		int[] statuses = new int[reports.size()];
+		for(int i=0; i<statuses.length; i++)
+			statuses[i] = reports.get(i).isDone() ? reports.get(i).join().getStatus() : -1;
+		System.out.printf("send statuses %s, received payloads %s, the last %.1f s in%n", Arrays.toString(statuses), received, lastArrival[0] / 1e9);
+		check(statuses[0] == LinkLayer.TX_DELIVERED && statuses[1] == LinkLayer.TX_FAILED && statuses[2] == LinkLayer.TX_DELIVERED, "frames 0 and 2 are delivered and frame 1 fails");
+		check(received.equals(Arrays.asList((byte)0, (byte)2)), "the receiver gets payloads 0 and 2, in order");
+	}
+
+	/**
+	 * A receiver hearing from a station for the first time doesn't take the first frame it gets
+	 * for the start of the window: when the very first frame is lost and its successors overtake
+	 * its retransmission, the app still gets every payload, in order
+	 */
+	private static void firstLoss(){
+		Simulation sim = new Simulation(SEED);
+		Radio lossy = new LossyRadio(sim.medium().attach(), packet -> PacketManipulator.isDataPacket(packet)
+				&& PacketManipulator.getSeqNum(packet) == 0 && !PacketManipulator.isRetry(packet)); //Only the first try of the first frame
+		LinkLayer a = new LinkLayer((short)1, new PrintWriter(OutputStream.nullOutputStream(), true), lossy, new MacTimer(sim));
+		sim.run(137);
+		LinkLayer b = station(sim, 2);
+
+		Vector<Byte> received = new Vector<Byte>(); //First byte of each payload b received
+		long[] lastArrival = new long[1];
+		sim.start(() -> {
+			while(true){
+				for(Transmission t : b.recvBatch(64, -1))
+					received.add(t.getBuf()[0]);
+				lastArrival[0] = sim.nanos();
+			}
+		}, "Receiving "+b.ourMAC);
+		Vector<CompletableFuture<DeliveryReport>> reports = new Vector<CompletableFuture<DeliveryReport>>();
+		long[] sentAt = new long[1];
+		sim.start(() -> {
+			sentAt[0] = sim.nanos();
+			for(int i=0; i<3; i++)
+				reports.add(a.sendAsync(b.ourMAC, new byte[]{(byte)i}, 1));
+		}, "App");
+		sim.run(120000);
+
+		int[] statuses = new int[reports.size()];
+		for(int i=0; i<statuses.length; i++)
+			statuses[i] = reports.get(i).isDone() ? reports.get(i).join().getStatus() : -1;
+		double seconds = (lastArrival[0] - sentAt[0]) / 1e9;
+		System.out.printf("send statuses %s, received payloads %s, the last %.1f s after sending%n", Arrays.toString(statuses), received, seconds);
+		check(Arrays.equals(statuses, new int[]{LinkLayer.TX_DELIVERED, LinkLayer.TX_DELIVERED, LinkLayer.TX_DELIVERED}), "every frame is reported delivered");
+		check(received.equals(Arrays.asList((byte)0, (byte)1, (byte)2)), "the receiver gets payloads 0, 1 and 2, in order");
+		check(seconds < 10, "they arrive within 10 s rather than after the receiver gives up on a gap");
+	}
+
+	/**
+	 * Fragmented payloads from one station that interleave on the air, here a unicast and a
+	 * broadcast, are each put back together rather than tearing each other apart
+	 */
+	private static void fragments(){
+		Simulation sim = new Simulation(SEED);
+		LinkLayer a = station(sim, 1);
+		sim.run(137);
+		LinkLayer b = station(sim, 2);
+
+		Vector<Integer> received = new Vector<Integer>(); //Length of each payload b received
+		sim.start(() -> {
+			while(true){
+				for(Transmission t : b.recvBatch(64, -1))
+					received.add(t.getBuf().length);
+			}
+		}, "Receiving "+b.ourMAC);
+		Vector<CompletableFuture<DeliveryReport>> reports = new Vector<CompletableFuture<DeliveryReport>>();
+		sim.start(() -> {
+			reports.add(a.sendAsync(b.ourMAC, new byte[5000], 5000));
+			reports.add(a.sendAsync((short)LinkLayer.BROADCAST_ADDR, new byte[4500], 4500));
+		}, "App");
+		sim.run(60000);
+
+		int[] statuses = new int[reports.size()];
+		for(int i=0; i<statuses.length; i++)
+			statuses[i] = reports.get(i).isDone() ? reports.get(i).join().getStatus() : -1;
+		Collections.sort(received);
+		System.out.printf("send statuses %s, received payloads of %s bytes, %d reassemblies dropped%n", Arrays.toString(statuses), received, b.metrics.get(MacMetrics.REASSEMBLY_DROPS));
+		check(received.equals(Arrays.asList(4500, 5000)), "the receiver gets both payloads whole");
+		check(b.metrics.get(MacMetrics.REASSEMBLY_DROPS) == 0, "no partial payload is dropped");
+	}
+
+	/**
+	 * The queue bounds hold for payloads that take several frames: a fragmented payload needs
+	 * room for all its fragments in the transmit queue, and an aggregate needs room for all its
+	 * payloads in the receive queue
+	 */
+	private static void bounds(){
+		Simulation sim = new Simulation(SEED);
+		LinkLayer a = station(sim, 1);
+		LinkLayer b = station(sim, 2);
+		b.command(3, 0); //Only the frames we send on the air
+		int[] accepted = new int[2];
+		sim.start(() -> {
+			accepted[0] = a.send(b.ourMAC, new byte[100], 100, LinkLayer.AC_BEST_EFFORT, 0);
+			accepted[1] = a.send(b.ourMAC, new byte[7000], 7000, LinkLayer.AC_BEST_EFFORT, 0); //4 fragments
+		}, "App");
+		Radio sender = sim.medium().attach(); //b's app never calls recv(), so its queue fills up
+		sim.start(() -> {
+			sim.sleep(2000);
+			sender.transmit(PacketManipulator.buildDataPacket((short)LinkLayer.BROADCAST_ADDR, (short)3, new byte[100], 100, 0));
+			sim.sleep(100);
+			sender.transmit(PacketManipulator.buildAggregatePacket((short)LinkLayer.BROADCAST_ADDR, (short)3, Collections.nCopies(b.rxQueueFrames, new byte[10]), 1));
+		}, "Sending");
+		sim.run(10000);
+
+		System.out.printf("transmit queue of %d frames: send() took %d and %d bytes; receive queue of %d payloads: %d queued, %d packets dropped%n",
+				a.txQueueFrames, accepted[0], accepted[1], b.rxQueueFrames, b.metrics.get(MacMetrics.RX_QUEUE_PAYLOADS), b.metrics.get(MacMetrics.RX_OVERFLOW_DROPS));
+		check(accepted[0] == 100 && accepted[1] == 0, "a payload whose fragments don't all fit behind a queued frame is turned away");
+		check(b.metrics.get(MacMetrics.RX_QUEUE_PAYLOADS) <= b.rxQueueFrames, "an aggregate doesn't overfill the receive queue");
+	}
+
+	/**
+	 * A destination that has gone away only costs the healthy ones their share of the medium:
+	 * a station saturating a live peer and a dead one still gets about half its frames to the live one
+	 */
+	private static void deadPeer(){
+		long alone = liveGoodput(false);
+		long shared = liveGoodput(true);
+		System.out.printf("live peer goodput: %d frames alone, %d frames beside a dead peer (%.0f%%)%n", alone, shared, 100.0*shared/alone);
+		check(shared >= alone*2/5, "beside a dead peer the live one still gets at least 40% of its goodput alone");
+	}
+
+	/**
+	 * Station 1 sends to station 2 as fast as it can for 120 s
+	 * @param deadPeer whether it is saturating a destination nobody answers for at the same time
+	 * @return the frames station 2 received
+	 */
+	private static long liveGoodput(boolean deadPeer){
+		Simulation sim = new Simulation(SEED);
+		LinkLayer a = station(sim, 1);
+		sim.run(137);
+		LinkLayer b = station(sim, 2);
+		long[] received = drain(sim, b);
+		saturate(sim, a, b.ourMAC);
+		if(deadPeer)
+			saturate(sim, a, (short)99);
+		sim.run(120000);
+		System.out.println((deadPeer ? "beside a dead peer: " : "alone: ")+sim.medium().report());
+		return received[0];
+	}
+
+	/**
+	 * A block ACK that answers a burst right after it saves the medium an ACK per frame, while one
+	 * held back on a timer has to win the medium like data and doesn't collide with the next frame
+	 */
+	private static void blockAck(){
+		long[] immediate = blockAckRun(-1);
+		long[] held = blockAckRun(50);
+		long[] heldLong = blockAckRun(300);
+		check(held[0] > immediate[0] && heldLong[0] > immediate[0], "block ACKs deliver more than an ACK per frame");
+		check(held[1] < immediate[1]/2 && heldLong[1] < immediate[1]/2, "block ACKs take less than half as many ACK frames");
+		check(held[2] <= immediate[2] && heldLong[2] <= immediate[2], "block ACKs garble no more packets than an ACK per frame");
+	}
+
+	/**
+	 * Station 1 sends to station 2 as fast as it can for 120 s
+	 * @param delay the block ACK delay both use, -1 to ACK every frame
+	 * @return frames delivered, ACK frames sent and packets garbled
+	 */
+	private static long[] blockAckRun(int delay){
+		Simulation sim = new Simulation(SEED);
+		LinkLayer a = station(sim, 1);
+		sim.run(137);
+		LinkLayer b = station(sim, 2);
+		a.command(5, delay);
+		b.command(5, delay);
+		drain(sim, b);
+		saturate(sim, a, b.ourMAC);
+		sim.run(120000);
+		long[] result = {a.metrics.get(MacMetrics.TX_DELIVERED), b.metrics.get(MacMetrics.ACKS_SENT), a.metrics.get(MacMetrics.CRC_DROPS) + b.metrics.get(MacMetrics.CRC_DROPS)};
+		System.out.printf("block ACK delay %d: %d delivered, %d ACK frames, %d retries, %d packets garbled%n", delay, result[0], result[1], a.metrics.get(MacMetrics.RETRIES), result[2]);
+		return result;
+	}
+
+	/**
+	 * Stations that all have something to send take turns instead of colliding: each one backs
+	 * off after every transmission, so the one that just sent doesn't grab the medium straight
+	 * back, and a backoff frozen by someone else's frame is resumed rather than redrawn
+	 */
+	private static void contention(){
+		int stations = 4;
+		Simulation sim = new Simulation(SEED);
+		LinkLayer[] links = new LinkLayer[stations];
+		for(int i=0; i<stations; i++){
+			links[i] = station(sim, i+1);
+			sim.run(137);
+		}
+		for(int i=0; i<stations; i++){
+			drain(sim, links[i]);
+			saturate(sim, links[i], links[(i+1) % stations].ourMAC); //Each one sends to the next
+		}
+		sim.run(120000);
+
+		long delivered = 0, attempts = 0, retries = 0, fewest = Long.MAX_VALUE;
+		for(LinkLayer link : links){
+			delivered += link.metrics.get(MacMetrics.TX_DELIVERED);
+			attempts += link.metrics.get(MacMetrics.TX_ATTEMPTS) - link.metrics.get(MacMetrics.BEACONS_SENT); //Data frames only, beacons are never retried
+			retries += link.metrics.get(MacMetrics.RETRIES);
+			fewest = Math.min(fewest, link.metrics.get(MacMetrics.TX_DELIVERED));
+		}
+		System.out.println(sim.medium().report());
+		System.out.printf("%d stations: %d frames delivered, the fewest by one station %d, %d of %d data transmissions were retries (%.0f%%)%n",
+				stations, delivered, fewest, retries, attempts, 100.0*retries/attempts);
+		check(retries <= attempts/5, "at most one data transmission in five is a retry of one lost to a collision, with a CWmin of only "+RF.aCWmin);
+		check(fewest >= delivered/stations/2, "every station gets at least half its fair share of the frames delivered");
+	}
+
+	/**
+	 * Keeps a station's queue to a destination full
+	 * @param sim the simulation
+	 * @param from the sending station
+	 * @param dest the destination
+	 */
+	private static void saturate(Simulation sim, LinkLayer from, short dest){
+		sim.start(() -> {
+			while(true)
+				from.send(dest, new byte[100], 100, LinkLayer.AC_BEST_EFFORT, -1);
+		}, "Sending to "+dest);
+	}
+
+	/**
+	 * @param sim the simulation
+	 * @param mac the station's MAC address
+	 * @return a station in the simulation that prints nothing
+	 */
+	private static LinkLayer station(Simulation sim, int mac){
+		return new LinkLayer((short)mac, new PrintWriter(OutputStream.nullOutputStream(), true), sim);
+	}
+
+	/**
+	 * Keeps taking whatever a station receives, so its receive queue never fills up
+	 * @param sim the simulation
+	 * @param station the station
+	 * @return the number of payloads it has received so far, updated as they arrive
+	 */
+	private static long[] drain(Simulation sim, LinkLayer station){
+		long[] received = new long[1];
+		sim.start(() -> {
+			while(true)
+				received[0] += station.recvBatch(64, -1).size();
+		}, "Receiving "+station.ourMAC);
+		return received;
+	}
+
+	/**
+	 * @param length a packet's length in bytes
+	 * @return how long the packet is on the simulation's medium in ns
+	 */
+	private static long airtime(int length){
+		return (long)(SharedMedium.DEFAULT_PREAMBLE_MS * NANOS_PER_MS) + (long)(length * SharedMedium.DEFAULT_MS_PER_BYTE * NANOS_PER_MS);
+	}
+
+	/**
+	 * Prints and counts the outcome of a check
+	 * @param passed whether the check holds
+	 * @param what what was checked
+	 */
+	private static void check(boolean passed, String what){
+		if(!passed)
+			failures++;
+		System.out.println((passed ? "PASS " : "FAIL ")+what);
+	}
+
+	//A radio that never gets some packets onto the air
+	private static class LossyRadio implements Radio{
+		private Radio radio; //Carries the packets that aren't lost
+		private Predicate<byte[]> lost; //Which packets are lost
+
+		LossyRadio(Radio radio, Predicate<byte[]> lost){
+			this.radio = radio;
+			this.lost = lost;
+		}
+
+		public int transmit(byte[] packet){
+			return lost.test(packet) ? packet.length : radio.transmit(packet);
+		}
+
+		public byte[] receive(){
+			return radio.receive();
+		}
+
+		public boolean inUse(){
+			return radio.inUse();
+		}
+
+		public long clock(){
+			return radio.clock();
+		}
+
+		public long getIdleTime(){
+			return radio.getIdleTime();
+		}
+
+		public boolean dataWaiting(){
+			return radio.dataWaiting();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package wifi;
+
+/**
+ * The outcome of one asynchronous send, handed back through the CompletableFuture that
+ * {@link LinkLayer#sendAsync(short, byte[], int, int)} returns
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public class DeliveryReport {
+	private short dest; //Destination MAC address
+	private int status; //LinkLayer.TX_DELIVERED, TX_FAILED or the error that kept the data from being queued
+	private int retries; //Retransmissions it took
+	private long latency; //ms from the send to the ACK, -1 if it wasn't delivered
+
+	/**
+	 * @param dest the destination MAC address
+	 * @param status a LinkLayer status code
+	 * @param retries the number of retransmissions
+	 * @param latency ms from the send to the ACK, -1 if it wasn't delivered
+	 */
+	DeliveryReport(short dest, int status, int retries, long latency){
+		this.dest = dest;
+		this.status = status;
+		this.retries = retries;
+		this.latency = latency;
+	}
+
+	/**
+	 * @return the destination address
+	 */
+	public short getDestAddr(){
+		return dest;
+	}
+
+	/**
+	 * @return LinkLayer.TX_DELIVERED, LinkLayer.TX_FAILED once the retry limit was reached, or the
+	 * status code (INSUFFICIENT_BUFFER_SPACE, BAD_BUF_SIZE, ...) that kept the data from being queued
+	 */
+	public int getStatus(){
+		return status;
+	}
+
+	/**
+	 * @return true if the destination ACK'ed the data (broadcasts count once they are transmitted)
+	 */
+	public boolean isDelivered(){
+		return status == LinkLayer.TX_DELIVERED;
+	}
+
+	/**
+	 * @return the number of retransmissions, summed over all fragments of a fragmented payload
+	 */
+	public int getRetries(){
+		return retries;
+	}
+
+	/**
+	 * @return ms from the send to the (last) ACK, including the time spent queued, -1 if not delivered
+	 */
+	public long getLatency(){
+		return latency;
+	}
+
+	@Override
+	public String toString(){
+		return (isDelivered() ? "Delivered to " : "Failed to deliver to ")+dest+" (status "+status+") after "+retries+" retries, latency "+latency+" ms";
+	}
+}
@@ -0,0 +1,91 @@
+package wifi;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the sequence numbers of the data frames most recently accepted from each source,
+ * so a retransmission whose original got through (only the ACK was lost) can be recognised
+ * Memory is bounded: a fixed number of sources, each with a ring of its latest sequence numbers,
+ * and the least recently heard from source gives up its slot when a new one shows up
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+class DuplicateCache {
+	private short[] sources; //Source MAC address of each slot
+	private boolean[] used; //Whether a slot holds a source yet
+	private long[] lastUsed; //Value of touches when each slot was last used, for LRU eviction
+	private short[][] seqNums; //Ring of recent sequence numbers per slot, -1 if empty
+	private int[] next; //Ring position the next sequence number goes in, per slot
+	private long touches = 0; //Lookups and additions so far
+
+	/**
+	 * @param maxSources the number of sources remembered at once
+	 * @param depth the number of sequence numbers remembered per source
+	 */
+	DuplicateCache(int maxSources, int depth){
+		this.sources = new short[maxSources];
+		this.used = new boolean[maxSources];
+		this.lastUsed = new long[maxSources];
+		this.seqNums = new short[maxSources][depth];
+		this.next = new int[maxSources];
+		for(short[] ring : seqNums)
+			Arrays.fill(ring, (short)-1);
+	}
+
+	/**
+	 * @param src the source MAC address
+	 * @param seqNum the sequence number of a data frame from src
+	 * @return true if that frame was accepted recently
+	 */
+	boolean contains(short src, int seqNum){
+		int slot = slotOf(src);
+		if(slot < 0)
+			return false;
+		lastUsed[slot] = ++touches;
+		for(short seen : seqNums[slot]){
+			if(seen == seqNum)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Remembers that a data frame was accepted, evicting the least recently used source if needed
+	 * @param src the source MAC address
+	 * @param seqNum the sequence number of the frame
+	 */
+	void add(short src, int seqNum){
+		int slot = slotOf(src);
+		if(slot < 0){ //Take a free slot or the least recently used one
+			slot = 0;
+			for(int i=0; i<sources.length; i++){
+				if(!used[i]){
+					slot = i;
+					break;
+				}
+				if(lastUsed[i] < lastUsed[slot])
+					slot = i;
+			}
+			sources[slot] = src;
+			used[slot] = true;
+			Arrays.fill(seqNums[slot], (short)-1);
+			next[slot] = 0;
+		}
+		lastUsed[slot] = ++touches;
+		seqNums[slot][next[slot]] = (short)seqNum;
+		next[slot] = (next[slot] + 1) % seqNums[slot].length;
+	}
+
+	/**
+	 * @param src a source MAC address
+	 * @return the slot holding src or -1 if it isn't cached
+	 */
+	private int slotOf(short src){
+		for(int i=0; i<sources.length; i++){
+			if(used[i] && sources[i] == src)
+				return i;
+		}
+		return -1;
+	}
+}
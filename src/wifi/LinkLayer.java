@@ -1,11 +1,17 @@
 package wifi;
 
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import rf.RF;
 import java.util.Timer;
+import java.util.TimerTask;
 
 /**
  * Use this layer as a starting point for your project code.  See {@link Dot11Interface} for more
@@ -13,19 +19,39 @@ import java.util.Timer;
  * @author richards
  */
 public class LinkLayer implements Dot11Interface {
-	private static final int WINDOW_SIZE = 100; //TODO: choose window size
+	static final int SEQ_NUM_SPACE = 4096; //12 bits of sequence number in the header
+	static final int SIFS_TIME = RF.aSIFSTime;
+	static final int CONTROL_FRAME_TIME = 400; //Measured transmission duration of an ACK, also used for RTS, CTS and (roughly) data frames
+	static final int WINDOW_SIZE = 16; //Un-ACK'ed frames allowed in flight per destination (must be <= SEQ_NUM_SPACE/2)
 	public static final int BROADCAST_ADDR = -1;
-	private static RF theRF;           // You'll need one of these eventually
-	public static short ourMAC;       // Our MAC address
-	public static PrintWriter output; // The output stream we'll write to
+	public static final int AC_VOICE = 0; //EDCA access categories for send(), highest priority first
+	public static final int AC_VIDEO = 1;
+	public static final int AC_BEST_EFFORT = 2;
+	public static final int AC_BACKGROUND = 3;
+	private Radio theRF;               // You'll need one of these eventually
+	public short ourMAC;              // Our MAC address
+	public PrintWriter output;        // The output stream we'll write to
 	
-	public static Sender sender;
-	private static Receiver recvr;
+	public Sender sender;
+	private Receiver recvr;
+	public MacMetrics metrics; //Counters and gauges of this station, also registered with JMX
+	private Timer metricsTimer; //Writes the metrics to a file, made by the first command that asks for it
+	private MetricsDump dumpMetrics; //The running dump, null if there isn't one
 	
-	public static int diagLevel;
-	public static boolean slotRandom;
-	public static int beaconInterval;
-	public static int statusCode;
+	public int diagLevel;
+	public boolean slotRandom;
+	public int beaconInterval;
+	public int aggregationHold; //ms an aggregate frame waits for more payloads, -1 disables aggregation
+	public int blockAckDelay; //ms the Receiver holds ACKs to coalesce them into a block ACK, -1 ACKs every packet
+	public int fragmentThreshold; //Payloads longer than this many bytes are sent as fragments
+	private AtomicInteger nextPayloadId = new AtomicInteger(); //Sets each fragmented payload's fragments apart, apps may send from several threads
+	public int rtsThreshold; //Unicast data packets longer than this many bytes are preceded by RTS/CTS, -1 disables
+	public int txQueueFrames; //Frames queued per destination and access category before send() pushes back
+	public int txQueueBytes; //Bytes of packets queued per destination and access category before send() pushes back, -1 unbounded
+	public int rxQueueFrames; //Received payloads buffered for recv() before incoming data is dropped
+	public int rxQueueBytes; //Received bytes buffered for recv() before incoming data is dropped, -1 unbounded
+	public boolean crc32c; //Checksum data with CRC32C instead of CRC32 for peers whose beacons say they check it
+	public int statusCode;
 	
 	public static final int SUCCESS						=1;
 	public static final int UNSPECIFIED_ERROR			=2;
@@ -37,14 +63,10 @@ public class LinkLayer implements Dot11Interface {
 	public static final int BAD_MAC_ADDRESS				=8;
 	public static final int ILLEGAL_ARGUMENT			=9;
 	public static final int INSUFFICIENT_BUFFER_SPACE	=10;
-	private static long RFClockOffset = 0; //The amount of clock offset
-
-	private HashMap<Short, Integer> sequenceMap; //maps mac addresses to the current sequence number
+	private volatile long RFClockOffset = 0; //The amount of clock offset
 
 	//Data shared with threads
-	private Vector<byte[]> dataToTrans; //Outgoing data app->transmit
-	private ConcurrentLinkedQueue<byte[]> rcvdACK;
-	private Vector<byte[]> dataRcvd; //Incoming data recv->app
+	private Vector<Transmission> dataRcvd; //Incoming data recv->app
 	private ConcurrentLinkedQueue<byte[]> acksToSend;
 
 	/**
@@ -54,30 +76,74 @@ public class LinkLayer implements Dot11Interface {
 	 * @param output  Output stream associated with GUI
 	 */
 	public LinkLayer(short ourMAC, PrintWriter output) {
+		this(ourMAC, output, new RFRadio(new RF(null, null)));
+	}
+
+	/**
+	 * Constructor for a station on a radio other than the RF layer, such as a SharedMedium
+	 * @param ourMAC  MAC address
+	 * @param output  Output stream associated with GUI
+	 * @param radio  the radio to send and listen with
+	 */
+	public LinkLayer(short ourMAC, PrintWriter output, Radio radio) {
+		this(ourMAC, output, radio, new MacTimer());
+	}
+
+	/**
+	 * Constructor for a station in a simulation, on its medium and its virtual clock
+	 * @param ourMAC  MAC address
+	 * @param output  Output stream associated with GUI
+	 * @param sim  the simulation
+	 */
+	public LinkLayer(short ourMAC, PrintWriter output, Simulation sim) {
+		this(ourMAC, output, sim.medium().attach(), new MacTimer(sim));
+	}
+
+	/**
+	 * Constructor for a station on any radio and timer, e.g. a simulated station behind a radio that loses packets
+	 * @param ourMAC  MAC address
+	 * @param output  Output stream associated with GUI
+	 * @param radio  the radio to send and listen with
+	 * @param timer  the timer its waits, threads and timers go through
+	 */
+	LinkLayer(short ourMAC, PrintWriter output, Radio radio, MacTimer timer) {
 		this.statusCode = SUCCESS;
 		this.ourMAC = ourMAC;
 		this.output = output;      
-		this.theRF = new RF(null, null);
+		this.theRF = radio;
 		
-		sequenceMap = new HashMap<Short, Integer>();
-
 		//Shared between sender and recvr
-		this.rcvdACK = new ConcurrentLinkedQueue<byte[]>();
 		this.acksToSend = new ConcurrentLinkedQueue<byte[]>();
 
 		this.diagLevel = 0; //default to highest debug output
 		this.slotRandom = true;
 		this.beaconInterval = 10; //Default to interval of 5 seconds
+		this.aggregationHold = -1; //Every payload gets its own frame by default
+		this.blockAckDelay = -1; //Every packet gets its own ACK by default
+		this.fragmentThreshold = RF.aMPDUMaximumLength - PacketManipulator.SIZE_OVERHEAD; //Only fragment what doesn't fit in one packet
+		this.rtsThreshold = -1; //No RTS/CTS by default
+		this.txQueueFrames = 4;
+		this.txQueueBytes = -1;
+		this.rxQueueFrames = 5;
+		this.rxQueueBytes = -1;
+		this.crc32c = false;
+		this.metrics = new MacMetrics(ourMAC);
 		
 		//The sender thread
-		this.dataToTrans = new Vector<byte[]>();
-		this.sender = new Sender(this.theRF, this.dataToTrans, this.rcvdACK, this.acksToSend, this.output);
-		(new Thread(sender)).start();
+		this.sender = new Sender(this, this.theRF, this.acksToSend, this.output, timer);
+		timer.start(sender, "Sender "+ourMAC);
 
 		//The receiver thread
-		this.dataRcvd = new Vector<byte[]>();
-		this.recvr = new Receiver(this.theRF, this.dataRcvd, this.ourMAC, this.rcvdACK, this.acksToSend, this.output);
-		(new Thread(recvr)).start();
+		this.dataRcvd = new Vector<Transmission>();
+		this.recvr = new Receiver(this, this.theRF, this.dataRcvd, this.ourMAC, this.acksToSend, this.sender, this.output);
+		timer.start(recvr, "Receiver "+ourMAC);
+
+		metrics.setGauge(MacMetrics.TX_QUEUE_FRAMES, sender::queuedFrames);
+		metrics.setGauge(MacMetrics.IN_FLIGHT_FRAMES, sender::inFlightFrames);
+		metrics.setGauge(MacMetrics.RX_QUEUE_PAYLOADS, dataRcvd::size);
+		metrics.setGauge(MacMetrics.CONSECUTIVE_COLLISIONS, sender::collisionCount);
+		metrics.setGauge(MacMetrics.CLOCK_OFFSET_MS, () -> RFClockOffset);
+		metrics.registerMBean(output);
 
 		output.println("LinkLayer initialized using a random MAC address:"+this.ourMAC);
 	}
@@ -87,26 +153,106 @@ public class LinkLayer implements Dot11Interface {
 	 * of bytes to send.  See docs for full description.
 	 */
 	public int send(short dest, byte[] data, int len) {
-		if(dataToTrans.size() > 3) //Don't queue more than 4 packets
+		return send(dest, data, len, AC_BEST_EFFORT);
+	}
+
+	/**
+	 * Sends data in an EDCA access category, so latency sensitive traffic can get the medium
+	 * ahead of bulk transfers
+	 * @param dest the destination MAC address
+	 * @param data the payload
+	 * @param len the number of bytes to send
+	 * @param priority AC_VOICE, AC_VIDEO, AC_BEST_EFFORT or AC_BACKGROUND
+	 * @return len if the data was queued, 0 if the queue is full, -1 on error
+	 */
+	public int send(short dest, byte[] data, int len, int priority) {
+		return queueData(dest, data, len, priority, null, 0);
+	}
+
+	/**
+	 * Sends data in an access category, waiting for room if the destination's queue is full
+	 * instead of giving up right away
+	 * @param dest the destination MAC address
+	 * @param data the payload
+	 * @param len the number of bytes to send
+	 * @param priority AC_VOICE, AC_VIDEO, AC_BEST_EFFORT or AC_BACKGROUND
+	 * @param timeout ms to wait for room at most, -1 to wait as long as it takes
+	 * @return len if the data was queued, 0 if the queue stayed full, -1 on error
+	 */
+	public int send(short dest, byte[] data, int len, int priority, long timeout) {
+		return queueData(dest, data, len, priority, null, timeout);
+	}
+
+	/**
+	 * Sends best effort data without waiting for the outcome
+	 * @param dest the destination MAC address
+	 * @param data the payload
+	 * @param len the number of bytes to send
+	 * @return a future completed with the DeliveryReport once the data is ACK'ed or given up on
+	 */
+	public CompletableFuture<DeliveryReport> sendAsync(short dest, byte[] data, int len) {
+		return sendAsync(dest, data, len, AC_BEST_EFFORT);
+	}
+
+	/**
+	 * Sends data in an access category without waiting for the outcome, so many sends can be
+	 * pipelined without polling status().  Data that can't be queued completes right away with
+	 * the reason (INSUFFICIENT_BUFFER_SPACE if the queue is full).
+	 * @param dest the destination MAC address
+	 * @param data the payload
+	 * @param len the number of bytes to send
+	 * @param priority AC_VOICE, AC_VIDEO, AC_BEST_EFFORT or AC_BACKGROUND
+	 * @return a future completed with the DeliveryReport once the data is ACK'ed or given up on
+	 */
+	public CompletableFuture<DeliveryReport> sendAsync(short dest, byte[] data, int len, int priority) {
+		CompletableFuture<DeliveryReport> delivery = new CompletableFuture<DeliveryReport>();
+		int queued = queueData(dest, data, len, priority, delivery, 0);
+		if(queued == 0)
+			delivery.complete(new DeliveryReport(dest, INSUFFICIENT_BUFFER_SPACE, 0, -1));
+		else if(queued < 0)
+			delivery.complete(new DeliveryReport(dest, statusCode, 0, -1));
+		return delivery;
+	}
+
+	/**
+	 * Builds the packets for a payload and hands them to the Sender
+	 * @param dest the destination MAC address
+	 * @param data the payload
+	 * @param len the number of bytes to send
+	 * @param priority the access category
+	 * @param delivery completed when the data is ACK'ed or given up on, may be null
+	 * @param timeout ms to wait for room in the queue, 0 to not wait, -1 to wait as long as it takes
+	 * @return len if the data was queued, 0 if the queue is full, -1 on error
+	 */
+	private int queueData(short dest, byte[] data, int len, int priority, CompletableFuture<DeliveryReport> delivery, long timeout) {
+		if(diagLevel >= 1) output.println("LinkLayer: Trying to send "+len+" bytes to "+dest);
+		if(priority < AC_VOICE || priority > AC_BACKGROUND){
+			output.println("LinkLayer: "+priority+" is not an access category");
+			this.statusCode = LinkLayer.ILLEGAL_ARGUMENT;
+			return -1;
+		}
+
+		if(len > fragmentThreshold) //Too big for one packet
+			return sendFragments(dest, data, len, priority, delivery, timeout);
+
+		boolean aggregate = aggregationHold >= 0 && dest != BROADCAST_ADDR;
+		if(aggregate && sender.appendToAggregate(dest, data, len, priority, delivery)) //Rides along in a frame that is already queued
+			return len;
+
+		if(!sender.awaitRoom(dest, priority, 1, len, timeout)){ //The destination's queue in this access category is full
+			metrics.increment(MacMetrics.TX_QUEUE_FULL);
 			return 0;
-			
-		if(LinkLayer.diagLevel >= 1) output.println("LinkLayer: Trying to send "+len+" bytes to "+dest);
-
-		//add the packet to the shared Vector
-		Integer currentSeqNumber = sequenceMap.get(dest);
-		if(currentSeqNumber == null){
-			int newSeqNumber = 0; //always start with 0;
-			sequenceMap.put(dest, newSeqNumber);
-			currentSeqNumber = newSeqNumber;
 		}
-		//Construct the data packet
-		byte[] toSend = PacketManipulator.buildDataPacket(dest, this.ourMAC, data, len, currentSeqNumber);
 
-		currentSeqNumber = (currentSeqNumber + toSend.length) % WINDOW_SIZE;
-		sequenceMap.put(dest, currentSeqNumber);
+		//Construct the data packet, the Sender numbers it when it leaves the queue
+		byte[] toSend;
+		if(aggregate)
+			toSend = PacketManipulator.buildAggregatePacket(dest, this.ourMAC, Arrays.asList(Arrays.copyOf(data, len)), 0);
+		else
+			toSend = PacketManipulator.buildDataPacket(dest, this.ourMAC, data, len, 0);
 
-		boolean successAdding = dataToTrans.add(toSend);
-		if(successAdding) //success adding to the vector
+		boolean successAdding = sender.enqueue(toSend, priority, delivery);
+		if(successAdding) //success adding to the destination's queue
 			return len;
 		else{
 			this.statusCode = LinkLayer.TX_FAILED;
@@ -114,54 +260,153 @@ public class LinkLayer implements Dot11Interface {
 		}
 	}
 
+	/**
+	 * Splits a payload into fragments of at most fragmentThreshold bytes and queues them all
+	 * Each fragment is its own packet with its own sequence number, so losing one only costs
+	 * that fragment's retransmission.
+	 * @param dest the destination MAC address
+	 * @param data the payload
+	 * @param len the number of bytes to send
+	 * @param priority the access category
+	 * @param delivery completed once every fragment is ACK'ed or one is given up on, may be null
+	 * @param timeout ms to wait for room in the queue, 0 to not wait, -1 to wait as long as it takes
+	 * @return len if the fragments were queued, 0 if the queue is full, -1 on error
+	 */
+	private int sendFragments(short dest, byte[] data, int len, int priority, CompletableFuture<DeliveryReport> delivery, long timeout){
+		int fragmentLen = Math.min(fragmentThreshold, RF.aMPDUMaximumLength - PacketManipulator.SIZE_OVERHEAD - PacketManipulator.SIZE_FRAG_HEADER);
+		int fragments = (len + fragmentLen - 1) / fragmentLen;
+		if(fragments > PacketManipulator.MAX_FRAGMENTS){ //Fragment numbers only have 7 bits
+			output.println("LinkLayer: "+len+" bytes would need "+fragments+" fragments, the most we can send is "+PacketManipulator.MAX_FRAGMENTS);
+			this.statusCode = LinkLayer.BAD_BUF_SIZE;
+			return -1;
+		}
+		if(!sender.awaitRoom(dest, priority, fragments, len + fragments*PacketManipulator.SIZE_FRAG_HEADER, timeout)){ //Room for every fragment is checked at once so a payload is never left half queued
+			metrics.increment(MacMetrics.TX_QUEUE_FULL);
+			return 0;
+		}
+
+		int payloadId = nextPayloadId.getAndIncrement() & 0xFFFF;
+		if(diagLevel >= 1) output.println("LinkLayer: Sending "+len+" bytes as "+fragments+" fragments");
+		Vector<CompletableFuture<DeliveryReport>> fragmentDeliveries = new Vector<CompletableFuture<DeliveryReport>>(fragments);
+		for(int i=0; i<fragments; i++){
+			int offset = i*fragmentLen;
+			byte[] toSend = PacketManipulator.buildFragmentPacket(dest, this.ourMAC, data, offset, Math.min(fragmentLen, len-offset), i, i < fragments-1, payloadId, 0);
+			CompletableFuture<DeliveryReport> fragmentDelivery = delivery == null ? null : new CompletableFuture<DeliveryReport>();
+			if(fragmentDelivery != null)
+				fragmentDeliveries.add(fragmentDelivery);
+			if(!sender.enqueue(toSend, priority, fragmentDelivery)){
+				this.statusCode = LinkLayer.TX_FAILED;
+				return -1;
+			}
+		}
+		if(delivery != null){ //One report for the whole payload
+			CompletableFuture.allOf(fragmentDeliveries.toArray(new CompletableFuture<?>[fragments])).thenRun(() -> {
+				int status = TX_DELIVERED;
+				int retries = 0;
+				long latency = -1;
+				for(CompletableFuture<DeliveryReport> fragment : fragmentDeliveries){
+					DeliveryReport report = fragment.join();
+					retries += report.getRetries();
+					if(report.isDelivered())
+						latency = Math.max(latency, report.getLatency());
+					else
+						status = report.getStatus();
+				}
+				delivery.complete(new DeliveryReport(dest, status, retries, status == TX_DELIVERED ? latency : -1));
+			});
+		}
+		return len;
+	}
+
 	/**
 	 * Recv method blocks until data arrives, then writes info into
 	 * the Transmission object.  See docs for full description.
 	 */
 	public int recv(Transmission t) {
 		output.println("LinkLayer: Blocking on recv()");
-		while(this.dataRcvd.isEmpty()){ //While there is no new data rcvd (block)
-
-			try{ 
-				Thread.sleep(100); //Wait
-			}
-			catch(InterruptedException e){ //If interrupted during sleep
-				output.println("Interrupted while blocking in recv() "+e);
-
-			}
-		}
+		return recv(t, -1);
+	}
 
-		//There is new info so process it
-		byte[] dataRcvd = this.dataRcvd.get(0);
+	/**
+	 * Blocks until data arrives or the timeout passes, then writes info into the Transmission object
+	 * @param t the Transmission to fill in
+	 * @param timeout ms to wait at most, -1 to wait as long as it takes
+	 * @return the number of bytes received, or -1 if nothing arrived in time
+	 */
+	public int recv(Transmission t, long timeout) {
+		Vector<Transmission> received = recvBatch(1, timeout);
+		if(received.isEmpty())
+			return -1;
+		Transmission rcvd = received.get(0);
 
 		//add the info to the transmission object
-		short destAddr = PacketManipulator.getDestAddr(dataRcvd);
-		t.setDestAddr(destAddr);
-
-		short sourceAddr = PacketManipulator.getSourceAddr(dataRcvd);
-		t.setSourceAddr(sourceAddr);
-
-		byte[] data = PacketManipulator.getData(dataRcvd);
+		t.setDestAddr(rcvd.getDestAddr());
+		t.setSourceAddr(rcvd.getSourceAddr());
+		byte[] data = rcvd.getBuf();
 		t.setBuf(data); 
 
-		this.dataRcvd.remove(0); //delete the packet we just processed
 		return data.length;
 	}
 
+	/**
+	 * Takes up to max received payloads in one call, blocking until at least one has arrived or the
+	 * timeout passes, so a busy consumer doesn't pay for a wakeup per payload
+	 * @param max the most payloads to return
+	 * @param timeout ms to wait at most, 0 to not wait, -1 to wait as long as it takes
+	 * @return the payloads, oldest first, empty if nothing arrived in time
+	 */
+	public Vector<Transmission> recvBatch(int max, long timeout) {
+		Vector<Transmission> received = new Vector<Transmission>();
+		long deadline = clock() + timeout;
+		synchronized(this.dataRcvd){ //The Receiver notifies on dataRcvd whenever it queues a payload
+			while(this.dataRcvd.isEmpty()){ //While there is no new data rcvd (block)
+				long waitTime = 0; //0 waits until woken
+				if(timeout >= 0){
+					waitTime = deadline - clock();
+					if(waitTime <= 0)
+						return received;
+				}
+				try{ 
+					sender.timer.waitOn(this.dataRcvd, waitTime); //Wait
+				}
+				catch(InterruptedException e){ //If interrupted during wait
+					output.println("Interrupted while blocking in recv() "+e);
+					return received;
+				}
+			}
+
+			//There is new info so process it
+			while(received.size() < max && !this.dataRcvd.isEmpty())
+				received.add(this.dataRcvd.remove(0));
+		}
+		return received;
+	}
+
+	/**
+	 * @return the number of received data packets dropped (and left un-ACK'ed) because the
+	 * receive queue was full, since the LinkLayer started
+	 */
+	public int overflowDrops() {
+		return (int)metrics.get(MacMetrics.RX_OVERFLOW_DROPS);
+	}
+
 	/**
 	 * This function allows for updating the clock value as well as adding an offset so that it is synced with other clocks
 	 * @param time If -1 the method returns the current clock time (with offset) if != -1 then it will try to update the clock
 	 * time and give back the new clock time. It only updates the clock time if it would be greater than current clock time
 	 * @return the clock time
 	 */
-	public static long clock(){
+	public long clock(){
 		return theRF.clock() + RFClockOffset;
 	}
 
-	public static void updateClock(long time){
-		if(time > clock())
-			RFClockOffset = time - clock();
-		
+	public void updateClock(long time){
+		long now = clock();
+		if(time > now){
+			RFClockOffset += time - now; //Only the Receiver moves the clock, so this can't race
+			metrics.increment(MacMetrics.CLOCK_ADJUSTMENTS);
+			metrics.add(MacMetrics.CLOCK_ADJUSTED_MS, time - now);
+		}
 	}
 	/**
 	 * Returns a current status code.  See docs for full description.
@@ -183,7 +428,27 @@ public class LinkLayer implements Dot11Interface {
 				if(slotRandom) output.println("Random.");
 					else output.println("Fixed.");
 				output.println("Beacon Interval: " + beaconInterval + " seconds.");
-				output.println("Commands available:\n\t0)Print Commands\n\t1)Set Diagnostic Level\n\t2)Slot Random/Fixed\n\t3)Beacon Frame Interval");
+				if(aggregationHold >= 0) output.println("Frame Aggregation: hold " + aggregationHold + " ms, " + sender.aggregationReport());
+					else output.println("Frame Aggregation: disabled.");
+				if(blockAckDelay >= 0) output.println("Block ACK: hold ACKs " + blockAckDelay + " ms.");
+					else output.println("Block ACK: disabled.");
+				output.println("Fragmentation Threshold: " + fragmentThreshold + " bytes.");
+				output.print("MAC Timing:");
+				if(sender.timer.precise) output.print("Precise. ");
+					else output.print("Sleep. ");
+				output.println(sender.timer.jitterReport());
+				if(rtsThreshold >= 0) output.println("RTS Threshold: " + rtsThreshold + " bytes.");
+					else output.println("RTS Threshold: disabled.");
+				output.print(sender.accessCategoryReport());
+				output.println("Transmit Queue: " + txQueueFrames + " frames, " + (txQueueBytes >= 0 ? txQueueBytes + " bytes" : "unbounded bytes") + " per destination and access category.");
+				output.print("Checksum:");
+				if(crc32c) output.print("CRC32C where supported. ");
+					else output.print("CRC32. ");
+				output.println(metrics.get(MacMetrics.CRC_DROPS) + " packets with a bad CRC dropped.");
+				output.println("Receive Queue: " + rxQueueFrames + " frames, " + (rxQueueBytes >= 0 ? rxQueueBytes + " bytes" : "unbounded bytes") + ", " + overflowDrops() + " overflow drops.");
+				if(dumpMetrics != null) output.println("MAC Metrics: written to " + dumpMetrics.file + " every " + dumpMetrics.seconds + " seconds.");
+					else output.println("MAC Metrics: not written to a file.");
+				output.println("Commands available:\n\t0)Print Commands\n\t1)Set Diagnostic Level\n\t2)Slot Random/Fixed\n\t3)Beacon Frame Interval\n\t4)Frame Aggregation Hold Time\n\t5)Block ACK Delay\n\t6)Fragmentation Threshold\n\t7)MAC Timing Precise/Sleep\n\t8)Print ACK Timeouts\n\t9)RTS Threshold\n\t10)Transmit Queue Frames\n\t11)Transmit Queue Bytes\n\t12)Receive Queue Frames\n\t13)Receive Queue Bytes\n\t14)Checksum CRC32/CRC32C\n\t15)MAC Metrics");
 				break;
 			case 1:
 				output.println("Setting diagnostic level to "+ val);
@@ -203,13 +468,150 @@ public class LinkLayer implements Dot11Interface {
 			case 3:
 				output.println("Setting beacon interval to "+val+" seconds.");
 				this.beaconInterval = val;
-				sender.sendBeacon.cancel();
+				sender.timer.cancel(sender.sendBeacon);
 				if(beaconInterval > 0){
 					sender.beaconTimer = new Timer();
-					sender.beaconTimer.scheduleAtFixedRate(sender.sendBeacon, 1000, this.beaconInterval*1000);
+					sender.sendBeacon = sender.new BeaconProbe(); //A cancelled task can't be scheduled again
+					sender.timer.schedule(sender.beaconTimer, sender.sendBeacon, 1000, this.beaconInterval*1000);
+				}
+				break;
+			case 4:
+				if(val < 0){
+					output.println("Disabling frame aggregation.");
+				}else{
+					output.println("Aggregating payloads to the same destination, holding frames up to "+val+" ms.");
+				}
+				output.println(sender.aggregationReport());
+				this.aggregationHold = val < 0 ? -1 : val;
+				sender.wakeUp(); //Held frames may be sendable now
+				break;
+			case 5:
+				if(val < 0){
+					output.println("Disabling block ACKs.");
+				}else{
+					output.println("Coalescing ACKs into block ACKs, holding them up to "+val+" ms.");
+				}
+				this.blockAckDelay = val < 0 ? -1 : val;
+				break;
+			case 6:
+				if(val < 1){
+					output.println("Expecting a fragmentation threshold of at least 1 byte.  Try again.");
+				}else{
+					output.println("Fragmenting payloads longer than "+val+" bytes.");
+					this.fragmentThreshold = val;
+				}
+				break;
+			case 7:
+				output.println(sender.timer.jitterReport());
+				if(val==0){
+					output.println("Setting MAC timing to Precise.");
+					sender.timer.precise = true;
+				}else if (val==1){
+					output.println("Setting MAC timing to Sleep.");
+					sender.timer.precise = false;
+				}else{
+					output.println("Expecting 0 for precise or 1 for sleep.  Try again.");
+					break;
+				}
+				sender.timer.resetStats(); //Report each mode on its own
+				break;
+			case 8:
+				output.print(sender.rttReport());
+				break;
+			case 9:
+				if(val < 0){
+					output.println("Disabling RTS/CTS.");
+				}else{
+					output.println("Reserving the medium with RTS/CTS for packets longer than "+val+" bytes.");
+				}
+				this.rtsThreshold = val < 0 ? -1 : val;
+				break;
+			case 10:
+				if(val < 1){
+					output.println("Expecting a transmit queue of at least 1 frame.  Try again.");
+				}else{
+					output.println("Queueing up to "+val+" frames per destination and access category.");
+					this.txQueueFrames = val;
+					sender.wakeUp(); //Blocked senders may fit now
+				}
+				break;
+			case 11:
+				if(val < 0){
+					output.println("Not bounding the transmit queue by bytes.");
+				}else{
+					output.println("Queueing up to "+val+" bytes per destination and access category.");
+				}
+				this.txQueueBytes = val < 0 ? -1 : val;
+				sender.wakeUp(); //Blocked senders may fit now
+				break;
+			case 12:
+				if(val < 1){
+					output.println("Expecting a receive queue of at least 1 frame.  Try again.");
+				}else{
+					output.println("Buffering up to "+val+" received frames.  "+overflowDrops()+" overflow drops so far.");
+					this.rxQueueFrames = val;
+				}
+				break;
+			case 13:
+				if(val < 0){
+					output.println("Not bounding the receive queue by bytes.");
+				}else{
+					output.println("Buffering up to "+val+" received bytes.");
 				}
+				output.println(overflowDrops()+" overflow drops so far.");
+				this.rxQueueBytes = val < 0 ? -1 : val;
+				break;
+			case 14:
+				if(val==0){
+					output.println("Setting checksum to CRC32.");
+					crc32c = false;
+				}else if (val==1){
+					output.println("Setting checksum to CRC32C for peers that support it.");
+					crc32c = true;
+				}else{
+					output.println("Expecting 0 for CRC32 or 1 for CRC32C.  Try again.");
+				}
+				output.println(metrics.get(MacMetrics.CRC_DROPS)+" packets with a bad CRC dropped so far.");
+				break;
+			case 15:
+				output.print(metrics.report());
+				if(val < 0) //Just print them
+					break;
+				if(dumpMetrics != null){
+					sender.timer.cancel(dumpMetrics);
+					dumpMetrics = null;
+				}
+				if(val == 0){
+					output.println("Not writing the metrics to a file.");
+					break;
+				}
+				if(metricsTimer == null)
+					metricsTimer = new Timer("Metrics "+ourMAC, true);
+				dumpMetrics = new MetricsDump(Paths.get("wifi-metrics-"+ourMAC+".prom"), val);
+				output.println("Writing the metrics to "+dumpMetrics.file.toAbsolutePath()+" every "+val+" seconds.");
+				sender.timer.schedule(metricsTimer, dumpMetrics, 0, val*1000L);
 				break;
 		}
 		return 0;
 	}
+
+	//Writes the metrics to a file in the Prometheus text format every time the timer fires
+	private class MetricsDump extends TimerTask{
+		private Path file;
+		private int seconds; //How often, for the command output
+
+		MetricsDump(Path file, int seconds){
+			this.file = file;
+			this.seconds = seconds;
+		}
+
+		public void run() {
+			try{
+				metrics.writePrometheus(file);
+			}
+			catch(IOException e){
+				output.println("Couldn't write the metrics to "+file+" "+e);
+			}
+		}
+	}
 }
@@ -0,0 +1,235 @@
+package wifi;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * One station's MAC counters and gauges
+ * Counters live in an AtomicLongArray, so the Sender, Receiver and LinkLayer bump them without
+ * taking a lock.  Gauges such as queue depths are read from the station when someone looks.
+ * Everything can be printed, read over JMX as wifi:type=MacMetrics,station=<MAC>, or written out
+ * in the Prometheus text format.
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public class MacMetrics implements DynamicMBean {
+	public static final int TX_ATTEMPTS = 0;
+	public static final int RETRIES = 1;
+	public static final int RETRY_LIMIT_DROPS = 2;
+	public static final int COLLISIONS = 3;
+	public static final int INTERNAL_COLLISIONS = 4;
+	public static final int ACK_TIMEOUTS = 5;
+	public static final int TX_DELIVERED = 6;
+	public static final int TX_QUEUE_FULL = 7;
+	public static final int ACKS_SENT = 8;
+	public static final int ACKS_RECEIVED = 9;
+	public static final int RX_FRAMES = 10;
+	public static final int RX_OVERFLOW_DROPS = 11;
+	public static final int CRC_DROPS = 12;
+	public static final int DUPLICATES = 13;
+	public static final int REASSEMBLY_DROPS = 14;
+	public static final int BEACONS_SENT = 15;
+	public static final int BEACONS_RECEIVED = 16;
+	public static final int CLOCK_ADJUSTMENTS = 17;
+	public static final int CLOCK_ADJUSTED_MS = 18;
+	public static final int TX_QUEUE_FRAMES = 19; //Gauges from here on
+	public static final int IN_FLIGHT_FRAMES = 20;
+	public static final int RX_QUEUE_PAYLOADS = 21;
+	public static final int CONSECUTIVE_COLLISIONS = 22;
+	public static final int CLOCK_OFFSET_MS = 23;
+	private static final int FIRST_GAUGE = TX_QUEUE_FRAMES;
+
+	//Name and help text of every metric, by number
+	private static final String[][] METRICS = {
+		{"wifi_tx_attempts_total", "Data and beacon frames put on the air, retransmissions included"},
+		{"wifi_retries_total", "Retransmissions after an ACK timeout"},
+		{"wifi_retry_limit_drops_total", "Frames given up on after dot11RetryLimit retries"},
+		{"wifi_collisions_total", "ACK or CTS timeouts taken to be collisions"},
+		{"wifi_internal_collisions_total", "Slots an access category lost to a higher priority one"},
+		{"wifi_ack_timeouts_total", "Frames whose ACK or CTS didn't come in time, the last try before a drop included"},
+		{"wifi_tx_delivered_total", "Frames ACK'ed"},
+		{"wifi_tx_queue_full_total", "Sends turned away because the transmit queue was full"},
+		{"wifi_acks_sent_total", "ACKs and block ACKs transmitted"},
+		{"wifi_acks_received_total", "ACKs and block ACKs received"},
+		{"wifi_rx_frames_total", "Data frames accepted for us"},
+		{"wifi_rx_overflow_drops_total", "Data frames dropped because recv() hadn't caught up"},
+		{"wifi_crc_drops_total", "Packets dropped because their CRC didn't match"},
+		{"wifi_duplicates_total", "Retransmissions re-ACK'ed without being delivered again"},
+		{"wifi_reassembly_drops_total", "Fragmented payloads given up on"},
+		{"wifi_beacons_sent_total", "Beacons transmitted"},
+		{"wifi_beacons_received_total", "Beacons received"},
+		{"wifi_clock_adjustments_total", "Times a beacon moved the clock forward"},
+		{"wifi_clock_adjusted_ms_total", "ms beacons moved the clock forward by"},
+		{"wifi_tx_queue_frames", "Frames waiting in the transmit queues"},
+		{"wifi_in_flight_frames", "Frames transmitted and waiting for an ACK"},
+		{"wifi_rx_queue_payloads", "Payloads waiting for recv()"},
+		{"wifi_consecutive_collisions", "Collisions since the last frame was ACK'ed or given up on"},
+		{"wifi_clock_offset_ms", "ms the clock is ahead of the radio's"}};
+
+	private short station; //The station's MAC address
+	private AtomicLongArray counts = new AtomicLongArray(FIRST_GAUGE);
+	private LongSupplier[] gauges = new LongSupplier[METRICS.length - FIRST_GAUGE]; //Read when the metrics are
+
+	/**
+	 * @param station the station's MAC address
+	 */
+	public MacMetrics(short station){
+		this.station = station;
+	}
+
+	/**
+	 * Adds one to a counter
+	 * @param counter the counter
+	 */
+	void increment(int counter){
+		counts.incrementAndGet(counter);
+	}
+
+	/**
+	 * Adds to a counter
+	 * @param counter the counter
+	 * @param amount how much
+	 */
+	void add(int counter, long amount){
+		counts.addAndGet(counter, amount);
+	}
+
+	/**
+	 * Sets where a gauge's value comes from
+	 * @param gauge the gauge
+	 * @param value reads its current value
+	 */
+	void setGauge(int gauge, LongSupplier value){
+		gauges[gauge - FIRST_GAUGE] = value;
+	}
+
+	/**
+	 * @param metric a counter or gauge
+	 * @return its value, 0 for a gauge with nowhere to read it from yet
+	 */
+	public long get(int metric){
+		if(metric < FIRST_GAUGE)
+			return counts.get(metric);
+		LongSupplier gauge = gauges[metric - FIRST_GAUGE];
+		return gauge == null ? 0 : gauge.getAsLong();
+	}
+
+	/**
+	 * @return one line per metric, for the command output
+	 */
+	public String report(){
+		StringBuilder report = new StringBuilder();
+		for(int i=0; i<METRICS.length; i++)
+			report.append(String.format("%-32s %d%n", METRICS[i][0], get(i)));
+		return report.toString();
+	}
+
+	/**
+	 * @return every metric in the Prometheus text exposition format, labelled with the station
+	 */
+	public String prometheus(){
+		StringBuilder text = new StringBuilder();
+		for(int i=0; i<METRICS.length; i++){
+			text.append("# HELP ").append(METRICS[i][0]).append(' ').append(METRICS[i][1]).append('\n');
+			text.append("# TYPE ").append(METRICS[i][0]).append(i < FIRST_GAUGE ? " counter\n" : " gauge\n");
+			text.append(METRICS[i][0]).append("{station=\"").append(station).append("\"} ").append(get(i)).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Writes the Prometheus text to a file, replacing it in one step so a collector never reads half of it
+	 * @param file the file
+	 * @throws IOException if it can't be written
+	 */
+	public void writePrometheus(Path file) throws IOException{
+		Path temp = file.resolveSibling(file.getFileName()+".tmp");
+		Files.write(temp, prometheus().getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Registers the metrics with the platform MBean server, replacing an earlier station with the same MAC address
+	 * @param output where to say so if it fails
+	 */
+	void registerMBean(PrintWriter output){
+		try{
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("wifi:type=MacMetrics,station="+station);
+			synchronized(MacMetrics.class){ //Stations in one JVM may come up at once
+				if(server.isRegistered(name))
+					server.unregisterMBean(name);
+				server.registerMBean(this, name);
+			}
+		}catch(JMException e){
+			output.println("Couldn't register the MAC metrics with JMX "+e);
+		}
+	}
+
+	/**
+	 * @param name the metric name without its wifi_ prefix
+	 * @return its number, -1 if there isn't one
+	 */
+	private static int lookup(String name){
+		for(int i=0; i<METRICS.length; i++){
+			if(METRICS[i][0].equals("wifi_"+name))
+				return i;
+		}
+		return -1;
+	}
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException{
+		int metric = lookup(attribute);
+		if(metric < 0)
+			throw new AttributeNotFoundException(attribute);
+		return get(metric);
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+		throw new AttributeNotFoundException("MAC metrics are read only");
+	}
+
+	public AttributeList getAttributes(String[] attributes){
+		AttributeList list = new AttributeList();
+		for(String attribute : attributes){
+			int metric = lookup(attribute);
+			if(metric >= 0)
+				list.add(new Attribute(attribute, get(metric)));
+		}
+		return list;
+	}
+
+	public AttributeList setAttributes(AttributeList attributes){
+		return new AttributeList(); //Nothing can be set
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException{
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public MBeanInfo getMBeanInfo(){
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[METRICS.length];
+		for(int i=0; i<METRICS.length; i++)
+			attributes[i] = new MBeanAttributeInfo(METRICS[i][0].substring("wifi_".length()), "long", METRICS[i][1], true, false, false);
+		return new MBeanInfo(getClass().getName(), "MAC metrics of station "+station, attributes, null, null, null);
+	}
+}
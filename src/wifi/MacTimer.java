@@ -0,0 +1,191 @@
+package wifi;
+
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Waits out the MAC's inter-frame spaces and backoff slots
+ * In precise mode waits are measured against System.nanoTime() deadlines: the thread parks until
+ * shortly before the deadline and spins the rest of the way, so it neither wakes up early nor
+ * overshoots by a scheduler tick the way Thread.sleep() does.  The other mode is plain Thread.sleep().
+ * Every wait records how far past its deadline it returned so the accuracy can be reported.
+ * A station in a Simulation gets a MacTimer on the simulation instead: its waits, the monitor
+ * waits of the Sender, Receiver and LinkLayer, their threads, timers and random draws all go
+ * through the simulation, so the whole station runs in simulated time.
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+class MacTimer {
+	private static final long SPIN_NANOS = 200000; //The last 0.2ms of a precise wait is spun rather than parked
+	private static final long NANOS_PER_MS = 1000000;
+
+	//Jitter statistics, in ns past the deadline
+	private long waits = 0;
+	private long totalOvershoot = 0;
+	private long maxOvershoot = 0;
+
+	volatile boolean precise = true; //Park and spin against nanoTime deadlines rather than Thread.sleep()
+	private Simulation sim; //null in real time
+	private Random random; //Backoff draws
+
+	/**
+	 * A timer on the wall clock
+	 */
+	MacTimer(){
+		this.random = new Random();
+	}
+
+	/**
+	 * A timer on a simulation's clock
+	 * @param sim the simulation
+	 */
+	MacTimer(Simulation sim){
+		this.sim = sim;
+		this.random = sim.newRandom();
+	}
+
+	/**
+	 * Waits for the given number of milliseconds
+	 * @param millis how long to wait
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void waitMillis(long millis) throws InterruptedException{
+		waitNanos(millis * NANOS_PER_MS);
+	}
+
+	/**
+	 * Waits for the given number of nanoseconds
+	 * @param nanos how long to wait
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void waitNanos(long nanos) throws InterruptedException{
+		if(nanos <= 0)
+			return;
+		if(sim != null){ //Simulated waits end exactly on time
+			sim.sleepNanos(nanos);
+			return;
+		}
+		long deadline = System.nanoTime() + nanos;
+		if(precise){
+			long remaining;
+			while((remaining = deadline - System.nanoTime()) > SPIN_NANOS){
+				LockSupport.parkNanos(remaining - SPIN_NANOS);
+				if(Thread.interrupted())
+					throw new InterruptedException();
+			}
+			while(System.nanoTime() < deadline)
+				; //Spin out the rest
+		}
+		else
+			Thread.sleep(nanos / NANOS_PER_MS, (int)(nanos % NANOS_PER_MS));
+		record(System.nanoTime() - deadline);
+	}
+
+	/**
+	 * Waits on a monitor until it is woken with wake() or the time runs out, like Object.wait()
+	 * The caller must hold the monitor
+	 * @param monitor the monitor
+	 * @param millis how long to wait at most, 0 to wait until woken
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	void waitOn(Object monitor, long millis) throws InterruptedException{
+		if(sim != null)
+			sim.await(monitor, millis * NANOS_PER_MS);
+		else
+			monitor.wait(millis);
+	}
+
+	/**
+	 * Wakes everything waiting on a monitor with waitOn(), like Object.notifyAll()
+	 * The caller must hold the monitor
+	 * @param monitor the monitor
+	 */
+	void wake(Object monitor){
+		if(sim != null)
+			sim.signal(monitor);
+		else
+			monitor.notifyAll();
+	}
+
+	/**
+	 * Starts one of the station's threads
+	 * @param work what the thread does
+	 * @param name the thread's name
+	 */
+	void start(Runnable work, String name){
+		if(sim != null)
+			sim.start(work, name);
+		else
+			new Thread(work, name).start();
+	}
+
+	/**
+	 * Runs a task after a delay and then, if it has a period, over and over
+	 * @param timer the Timer that runs it in real time
+	 * @param task the task
+	 * @param delay ms until the first run
+	 * @param period ms between runs, 0 to run once
+	 */
+	void schedule(Timer timer, TimerTask task, long delay, long period){
+		if(sim != null)
+			sim.schedule(task, delay * NANOS_PER_MS, period * NANOS_PER_MS);
+		else if(period > 0)
+			timer.scheduleAtFixedRate(task, delay, period);
+		else
+			timer.schedule(task, delay);
+	}
+
+	/**
+	 * Stops a task given to schedule()
+	 * @param task the task
+	 */
+	void cancel(TimerTask task){
+		task.cancel();
+		if(sim != null)
+			sim.cancel(task);
+	}
+
+	/**
+	 * @return the random number generator backoff is drawn from, seeded by the simulation if there is one
+	 */
+	Random random(){
+		return random;
+	}
+
+	/**
+	 * How long to wait between checks of a condition we can't be notified about, like an idle channel
+	 * @return the polling interval in ms
+	 */
+	long pollInterval(){
+		return precise ? 1 : 100;
+	}
+
+	private synchronized void record(long overshoot){
+		waits++;
+		totalOvershoot += overshoot;
+		maxOvershoot = Math.max(maxOvershoot, overshoot);
+	}
+
+	/**
+	 * Clears the jitter statistics, e.g. after switching modes
+	 */
+	synchronized void resetStats(){
+		waits = 0;
+		totalOvershoot = 0;
+		maxOvershoot = 0;
+	}
+
+	/**
+	 * @return a one line summary of how accurately waits have hit their deadlines
+	 */
+	synchronized String jitterReport(){
+		if(sim != null)
+			return "Simulated time, every wait ends exactly on its deadline.";
+		if(waits == 0)
+			return "No timed waits yet.";
+		return waits+" timed waits, overshoot mean "+(totalOvershoot/waits/1000)+" us, max "+(maxOvershoot/1000)+" us";
+	}
+}
@@ -1,8 +1,12 @@
 package wifi;
 
 import java.nio.ByteBuffer;
-import java.util.zip.Checksum;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Vector;
 import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
 import java.io.PrintWriter;
 
 /**
@@ -19,6 +23,16 @@ public class PacketManipulator {
 	private static final int SIZE_CONTROL = 2; //2 bytes of control
 	private static final int SIZE_ADDR = 2; //2 bytes of address
 	private static final int SIZE_CRC = 4; //4 bytes of CRC
+	public static final int SIZE_OVERHEAD = SIZE_CONTROL+SIZE_ADDR*2+SIZE_CRC; //Bytes in every packet besides the data
+	public static final int SIZE_SUBFRAME_LEN = 2; //Each payload in an aggregate packet is preceded by its 2 byte length
+	public static final int BLOCK_ACK_BITS = 32; //Sequence numbers covered by one block ACK bitmap
+	public static final int SIZE_FRAG_HEADER = 3; //Fragment packets start their data with a more-fragments bit, a 7 bit fragment number and a 16 bit payload id
+	public static final int MAX_FRAGMENTS = 128; //Fragment numbers that fit in 7 bits
+	private static final int SIZE_DURATION = 2; //RTS and CTS packets carry a 2 byte duration in ms
+	private static final byte[] NO_DATA = new byte[0]; //ACKs carry no data
+	private static final ThreadLocal<CRC32> CRC = ThreadLocal.withInitial(CRC32::new); //One checksum per thread, reset for each packet instead of allocated
+	private static final ThreadLocal<CRC32C> CRC_C = ThreadLocal.withInitial(CRC32C::new); //For peers that agreed to CRC32C
+	public static final int BEACON_CRC32C = 0x01; //Capability bit in a beacon: the station checks CRC32C as well as CRC32
 	//	private static final int MIN_SIZE_BUF = SIZE_CONTROL + SIZE_ADDR*2; //There are always 10 bytes of non-data info in a packet (Ex. src address, checksum...)
 
 	/**
@@ -31,104 +45,323 @@ public class PacketManipulator {
 	 * @return the fully constructed packet
 	 */
 	public static byte[] buildDataPacket(short dest, short source, byte[] data, int len, int sequenceNum){
-		ByteBuffer noCRC = ByteBuffer.allocate(SIZE_CONTROL+SIZE_ADDR*2+len); //Packet w/o CRC
-		int controlBits = 0b000_00000;
-		int controlMask = 0b111_00000;
-		int seqMSBMask = 0x0F;
-		int seqMSB = sequenceNum >> 8;
-
-		byte firstByte = (byte)((controlBits & controlMask) + (seqMSB & seqMSBMask));
-		byte secondByte = (byte)(0xFF & sequenceNum);
-		noCRC.put(new byte[] {firstByte, secondByte});
-
-		noCRC.putShort(dest); //add the destination MAC address
-		noCRC.putShort(source); //Our MAC address
-		noCRC.put(data); //add data
+		return buildPacket(0b000_00000, dest, source, data, len, sequenceNum);
+	}
 
-		//Calculating CRC
-		byte[] preCRC = noCRC.array(); //Convert the data packet without the CRC field to calculate the checksum
-		Checksum checksum = new CRC32();
-		checksum.update(preCRC, 0, preCRC.length);
-		int checksumValue = (int) checksum.getValue(); //****Is this right to cast?????
+	/**
+	 * Constructs an aggregate data packet that carries several payloads for the same destination
+	 * Each payload is written as its 2 byte length followed by its bytes
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param payloads the payloads to pack, in the order they should be delivered
+	 * @param sequenceNum the sequence number of the packet
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildAggregatePacket(short dest, short source, List<byte[]> payloads, int sequenceNum){
+		int len = 0;
+		for(byte[] payload : payloads)
+			len += SIZE_SUBFRAME_LEN + payload.length;
+		ByteBuffer data = ByteBuffer.allocate(len);
+		for(byte[] payload : payloads){
+			data.putShort((short)payload.length);
+			data.put(payload);
+		}
+		return buildPacket(0b011_00000, dest, source, data.array(), len, sequenceNum);
+	}
 
-		ByteBuffer toSend = ByteBuffer.allocate(SIZE_CONTROL+SIZE_ADDR*2+len + SIZE_CRC); //full packet with the CRC
-		toSend.put(preCRC);
-		toSend.putInt(checksumValue);
+	/**
+	 * Constructs one fragment of a payload that is too big for a single packet
+	 * Every fragment gets its own sequence number so it is ACK'ed and retransmitted on its own
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param data the whole payload
+	 * @param offset where in data this fragment starts
+	 * @param len the number of bytes in this fragment
+	 * @param fragmentNum the position of this fragment in the payload, starting at 0
+	 * @param moreFragments whether more fragments of the payload follow this one
+	 * @param payloadId tells this payload's fragments apart from those of the source's other payloads
+	 * @param sequenceNum the sequence number of the packet
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildFragmentPacket(short dest, short source, byte[] data, int offset, int len, int fragmentNum, boolean moreFragments, int payloadId, int sequenceNum){
+		byte[] fragment = new byte[SIZE_FRAG_HEADER+len];
+		fragment[0] = (byte)((moreFragments ? 0x80 : 0) | (fragmentNum & 0x7F));
+		fragment[1] = (byte)(payloadId >> 8);
+		fragment[2] = (byte)payloadId;
+		System.arraycopy(data, offset, fragment, SIZE_FRAG_HEADER, len);
+		return buildPacket(0b111_00000, dest, source, fragment, fragment.length, sequenceNum);
+	}
 
+	/**
+	 * Constructs a network ordered packet of any type that carries data and a sequence number
+	 * @param controlBits the frame type in the top 3 bits
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param data the data to be transmitted
+	 * @param len the length of data (number of bytes)
+	 * @param sequenceNum the sequence number of the packet
+	 * @return the fully constructed packet
+	 */
+	private static byte[] buildPacket(int controlBits, short dest, short source, byte[] data, int len, int sequenceNum){
+		byte[] packet = new byte[SIZE_OVERHEAD+len]; //The only allocation, the packet is encoded straight into it
+		encodePacket(ByteBuffer.wrap(packet), controlBits & 0b111_00000, dest, source, data, 0, len, sequenceNum);
+		return packet;
+	}
 
-		return toSend.array();
+	/**
+	 * Encodes a packet straight into a caller-supplied buffer: header, data, then the CRC of both
+	 * Nothing is allocated, so a caller can encode every frame into the same buffer
+	 * @param out the buffer, the packet is written at its position which ends up just past the CRC
+	 * @param controlBits the frame type in the top 3 bits, and the retry bit
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param data the data to be transmitted
+	 * @param offset where in data the bytes to send start
+	 * @param len the length of data (number of bytes)
+	 * @param sequenceNum the sequence number of the packet
+	 * @return the number of bytes written, SIZE_OVERHEAD+len
+	 */
+	public static int encodePacket(ByteBuffer out, int controlBits, short dest, short source, byte[] data, int offset, int len, int sequenceNum){
+		int start = out.position();
+		encodeHeader(out, controlBits, dest, source, sequenceNum);
+		out.put(data, offset, len); //add data
+		encodeCRC(out, start);
+		return out.position() - start;
 	}
 
 	/**
-	 * Constructs ack  packet
+	 * Encodes a packet straight into a caller-supplied buffer, taking the data from another buffer
+	 * @param out the buffer, the packet is written at its position which ends up just past the CRC
+	 * @param controlBits the frame type in the top 3 bits, and the retry bit
 	 * @param dest the destination MAC address
 	 * @param source the source MAC address
-	 * @return the fully constructed packet
+	 * @param data the data to be transmitted, from its position to its limit (its position isn't changed)
+	 * @param sequenceNum the sequence number of the packet
+	 * @return the number of bytes written, SIZE_OVERHEAD plus the data length
 	 */
-	public static byte[] buildACKPacket(short dest, short source, int sequenceNum){
-		ByteBuffer noCRC = ByteBuffer.allocate(SIZE_CONTROL+SIZE_ADDR*2); //10 bytes of control, address, and CRC
+	public static int encodePacket(ByteBuffer out, int controlBits, short dest, short source, ByteBuffer data, int sequenceNum){
+		int start = out.position();
+		int dataStart = data.position();
+		encodeHeader(out, controlBits, dest, source, sequenceNum);
+		out.put(data); //add data
+		data.position(dataStart);
+		encodeCRC(out, start);
+		return out.position() - start;
+	}
 
-		int controlBits = 0b001_00000; //ack
-		int controlMask = 0b111_00000;
+	/**
+	 * Writes the control bytes and the addresses at the buffer's position
+	 * @param out the buffer
+	 * @param controlBits the frame type in the top 3 bits, and the retry bit
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param sequenceNum the sequence number of the packet
+	 */
+	private static void encodeHeader(ByteBuffer out, int controlBits, short dest, short source, int sequenceNum){
+		int controlMask = 0b111_10000;
 		int seqMSBMask = 0x0F;
 		int seqMSB = sequenceNum >> 8;
+		out.put((byte)((controlBits & controlMask) + (seqMSB & seqMSBMask)));
+		out.put((byte)(0xFF & sequenceNum));
+		out.putShort(dest); //add the destination MAC address
+		out.putShort(source); //Our MAC address
+	}
 
-		byte firstByte = (byte)((controlBits & controlMask) + (seqMSB & seqMSBMask));
-		byte secondByte = (byte)(0xFF & sequenceNum);
-		noCRC.put(new byte[] {firstByte, secondByte});
-
-		noCRC.putShort(dest); //add the destination MAC address
-		noCRC.putShort(source); //Our MAC address
-
-		//Calculating CRC
-		byte[] preCRC = noCRC.array(); //Convert the data packet without the CRC field to calculate the checksum
-		Checksum checksum = new CRC32();
-		checksum.update(preCRC, 0, preCRC.length);
-		int checksumValue = (int) checksum.getValue(); //****Is this right to cast?????
-
-		ByteBuffer toSend = ByteBuffer.allocate(SIZE_CONTROL+SIZE_ADDR*2+ SIZE_CRC); //full packet with the CRC
-		toSend.put(preCRC);
-		toSend.putInt(checksumValue);
-
+	/**
+	 * Appends the CRC of everything written to the buffer since start
+	 * @param out the buffer, positioned just past the data
+	 * @param start where the packet starts in the buffer
+	 */
+	private static void encodeCRC(ByteBuffer out, int start){
+		CRC32 checksum = CRC.get();
+		checksum.reset();
+		int end = out.position();
+		int limit = out.limit();
+		out.position(start);
+		out.limit(end);
+		checksum.update(out); //Leaves the position at end
+		out.limit(limit);
+		out.putInt((int) checksum.getValue());
+	}
 
-		return toSend.array();
+	/**
+	 * Constructs ack  packet
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildACKPacket(short dest, short source, int sequenceNum){
+		return buildPacket(0b001_00000, dest, source, NO_DATA, 0, sequenceNum); //ack
 	}
 	
-	public static byte[] buildBeaconPacket(short dest, short source){
-		int beaconLength = 8; //8 bytes for long.
-		ByteBuffer noCRC = ByteBuffer.allocate(SIZE_CONTROL+SIZE_ADDR*2+beaconLength); //Packet w/o CRC
-		byte controlBits = 0b010_00000; //beacon
+	/**
+	 * Constructs a block ACK packet that acknowledges several data packets at once
+	 * The sequence number field holds the first sequence number covered and bit i of the
+	 * 4 byte bitmap is set if startSeqNum+i was received
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param startSeqNum the sequence number bit 0 of the bitmap stands for
+	 * @param bitmap the received sequence numbers
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildBlockAckPacket(short dest, short source, int startSeqNum, int bitmap){
+		byte[] data = ByteBuffer.allocate(BLOCK_ACK_BITS/8).putInt(bitmap).array();
+		return buildPacket(0b110_00000, dest, source, data, data.length, startSeqNum);
+	}
 
-		noCRC.put(new byte[] {controlBits, 0}); //Beacons don't use sequence numbers  so we leave them all to be 0
-		
-		noCRC.putShort(dest); //add the destination MAC address
-		noCRC.putShort(source); //Our MAC address
-		noCRC.putLong(LinkLayer.clock()); //add data
+	/**
+	 * Constructs a BlockAckReq packet that asks dest for a block ACK right away
+	 * It is a block ACK packet without a bitmap, and its sequence number field holds the oldest
+	 * sequence number the sender still wants ACK'ed; the ones before it are done with
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param startSeqNum the oldest sequence number still outstanding
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildBlockAckReqPacket(short dest, short source, int startSeqNum){
+		return buildPacket(0b110_00000, dest, source, NO_DATA, 0, startSeqNum);
+	}
 
-		//Calculating CRC
-		byte[] preCRC = noCRC.array(); //Convert the data packet without the CRC field to calculate the checksum
-		Checksum checksum = new CRC32();
-		checksum.update(preCRC, 0, preCRC.length);
-		int checksumValue = (int) checksum.getValue(); //****Is this right to cast?????
+	/**
+	 * Constructs an RTS packet that asks dest to reserve the medium for us
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param duration ms the medium is reserved for after this packet (CTS, data and ACK)
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildRTSPacket(short dest, short source, int duration){
+		return buildDurationPacket(0b101_00000, dest, source, duration);
+	}
+
+	/**
+	 * Constructs a CTS packet answering an RTS
+	 * @param dest the MAC address of the station that sent the RTS
+	 * @param source the source MAC address
+	 * @param duration ms the medium stays reserved after this packet (data and ACK)
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildCTSPacket(short dest, short source, int duration){
+		return buildDurationPacket(0b100_00000, dest, source, duration);
+	}
 
-		ByteBuffer toSend = ByteBuffer.allocate(SIZE_CONTROL+SIZE_ADDR*2+beaconLength + SIZE_CRC); //full packet with the CRC
-		toSend.put(preCRC);
-		toSend.putInt(checksumValue);
+	/**
+	 * Constructs a control packet whose data is a 2 byte duration
+	 */
+	private static byte[] buildDurationPacket(int controlBits, short dest, short source, int duration){
+		byte[] packet = new byte[SIZE_OVERHEAD+SIZE_DURATION];
+		ByteBuffer out = ByteBuffer.wrap(packet);
+		encodeHeader(out, controlBits, dest, source, 0); //RTS and CTS don't use sequence numbers
+		out.putShort((short)Math.min(duration, 0xFFFF));
+		encodeCRC(out, 0);
+		return packet;
+	}
 
-		return toSend.array();
+	/**
+	 * Constructs a beacon carrying a given time
+	 * @param dest the destination MAC address
+	 * @param source the source MAC address
+	 * @param time the clock value to advertise
+	 * @return the fully constructed packet
+	 */
+	public static byte[] buildBeaconPacket(short dest, short source, long time){
+		int beaconLength = 8+1; //8 bytes for long, 1 byte of capabilities.
+		byte[] packet = new byte[SIZE_OVERHEAD+beaconLength];
+		ByteBuffer out = ByteBuffer.wrap(packet);
+		encodeHeader(out, 0b010_00000, dest, source, 0); //Beacons don't use sequence numbers  so we leave them all to be 0
+		out.putLong(time); //add data
+		out.put((byte)BEACON_CRC32C); //We can always check CRC32C
+		encodeCRC(out, 0);
+		return packet;
 	}
 
 	/**
-	 * sets an existing packet retry bit to 1
+	 * sets an existing packet retry bit to 1 and recomputes its CRC
 	 * @param prevPacket existing packet
 	 * @return modified packet
 	 */
 	public static byte[] setRetryBit(byte[] prevPacket){
+		return setRetryBit(prevPacket, false);
+	}
+
+	/**
+	 * sets an existing packet retry bit to 1 and recomputes its CRC
+	 * @param prevPacket existing packet
+	 * @param crc32c whether the packet is checked with CRC32C rather than CRC32
+	 * @return modified packet
+	 */
+	public static byte[] setRetryBit(byte[] prevPacket, boolean crc32c){
 		Byte retryMask = 0b0001_0000;
 		prevPacket[0] |= retryMask;
+		updateCRC(prevPacket, crc32c); //The header changed
 		return prevPacket;
 	}
 
+	/**
+	 * @param packet the packet to examine
+	 * @return true if the retry bit is set, meaning this is a retransmission
+	 */
+	public static boolean isRetry(byte[] packet){
+		return (packet[0] & 0b0001_0000) != 0;
+	}
+
+	/**
+	 * Rewrites the sequence number of an existing packet and recomputes its CRC
+	 * @param packet existing packet, modified in place
+	 * @param sequenceNum the new sequence number
+	 * @return modified packet
+	 */
+	public static byte[] setSeqNum(byte[] packet, int sequenceNum){
+		return setSeqNum(packet, sequenceNum, false);
+	}
+
+	/**
+	 * Rewrites the sequence number of an existing packet and recomputes its CRC
+	 * @param packet existing packet, modified in place
+	 * @param sequenceNum the new sequence number
+	 * @param crc32c whether to checksum it with CRC32C rather than CRC32 from now on
+	 * @return modified packet
+	 */
+	public static byte[] setSeqNum(byte[] packet, int sequenceNum, boolean crc32c){
+		int seqMSBMask = 0x0F;
+		packet[0] = (byte)((packet[0] & ~seqMSBMask) | ((sequenceNum >> 8) & seqMSBMask));
+		packet[1] = (byte)(0xFF & sequenceNum);
+		updateCRC(packet, crc32c);
+		return packet;
+	}
+
+	/**
+	 * Recomputes the CRC of a packet whose header has been changed
+	 * @param packet existing packet, modified in place
+	 * @param crc32c whether to use CRC32C rather than CRC32
+	 */
+	private static void updateCRC(byte[] packet, boolean crc32c){
+		ByteBuffer.wrap(packet).putInt(packet.length-SIZE_CRC, computeCRC(packet, crc32c));
+	}
+
+	/**
+	 * @param packet a packet
+	 * @param crc32c whether to use CRC32C rather than CRC32
+	 * @return the checksum of everything in the packet before its CRC field
+	 */
+	private static int computeCRC(byte[] packet, boolean crc32c){
+		Checksum checksum = crc32c ? CRC_C.get() : CRC.get();
+		checksum.reset();
+		checksum.update(packet, 0, packet.length-SIZE_CRC);
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * Checks a received packet against its CRC field
+	 * @param packet the packet as it came off the air
+	 * @param crc32c whether to check it as CRC32C rather than CRC32
+	 * @return true if the packet is long enough to be a packet and the CRC matches
+	 */
+	public static boolean hasValidCRC(byte[] packet, boolean crc32c){
+		if(packet.length < SIZE_OVERHEAD)
+			return false;
+		return computeCRC(packet, crc32c) == ByteBuffer.wrap(packet).getInt(packet.length-SIZE_CRC);
+	}
+
 	/**
 	 * A method that extracts the destination adress from a packet
 	 * @param data the packet we want to extract address from
@@ -164,19 +397,13 @@ public class PacketManipulator {
 	 * @return the data extracted from the packet (bytes 8 - recvdData.len-4) 
 	 */
 	public static byte[] getData(byte[] recvdData){
-
-		byte[] data = new byte[recvdData.length-(SIZE_CONTROL+SIZE_ADDR*2+SIZE_CRC)]; //-6 -4 = -10 (6 bytes for control and addressing, 4 for CRC)
-		for(int i=6; i<recvdData.length-4;i++){ //6 bytes to length-4 (eliminate control, addressing, and CRC) is where data can lie
-			data[i-6] = recvdData[i];
-		}
-
-		return data;
+		return Arrays.copyOfRange(recvdData, SIZE_CONTROL+SIZE_ADDR*2, recvdData.length-SIZE_CRC); //Between the control and addressing bytes and the CRC
 	}
 
 	public static int getSeqNum(byte[] packet){
 		int seqMSBMask = 0x0F;
 		int seqMSB = packet[0] & seqMSBMask;
-		int seqLSB = packet[1];
+		int seqLSB = packet[1] & 0xFF; //Don't sign extend the low byte
 
 		return (seqMSB << 8) + seqLSB;
 	}
@@ -199,15 +426,163 @@ public class PacketManipulator {
 			return false;
 	}
 
+	/**
+	 * @param recvdData The packet to examine
+	 * @return Whether or not the packet is an aggregate of several data payloads
+	 */
+	public static boolean isAggregatePacket(byte[] recvdData){
+		byte typeAggregate = 0b0110_0000;
+		return (recvdData[0] & 0b1110_0000) == typeAggregate;
+	}
+
+	/**
+	 * Splits an aggregate packet back into the payloads it carries
+	 * @param packet the aggregate packet
+	 * @return the payloads in the order they were packed
+	 */
+	public static Vector<byte[]> getSubframes(byte[] packet){
+		Vector<byte[]> payloads = new Vector<byte[]>();
+		ByteBuffer data = ByteBuffer.wrap(packet, SIZE_CONTROL+SIZE_ADDR*2, packet.length-SIZE_OVERHEAD);
+		while(data.remaining() >= SIZE_SUBFRAME_LEN){
+			int len = data.getShort() & 0xFFFF;
+			if(len > data.remaining()) //Truncated subframe, nothing after it can be trusted
+				break;
+			byte[] payload = new byte[len];
+			data.get(payload);
+			payloads.add(payload);
+		}
+		return payloads;
+	}
+
+	/**
+	 * Counts the payloads in an aggregate packet without copying them out
+	 * @param packet the aggregate packet
+	 * @return the number of payloads getSubframes() would return
+	 */
+	public static int getSubframeCount(byte[] packet){
+		int count = 0;
+		int end = packet.length-SIZE_CRC;
+		for(int i=SIZE_CONTROL+SIZE_ADDR*2; i+SIZE_SUBFRAME_LEN <= end; count++){
+			int len = ((packet[i] & 0xFF) << 8) | (packet[i+1] & 0xFF);
+			i += SIZE_SUBFRAME_LEN;
+			if(len > end-i) //Truncated subframe, getSubframes() stops here too
+				break;
+			i += len;
+		}
+		return count;
+	}
+
+	/**
+	 * @param recvdData The packet to examine
+	 * @return Whether or not the packet is one fragment of a larger payload
+	 */
+	public static boolean isFragmentPacket(byte[] recvdData){
+		int typeFragment = 0b1110_0000;
+		return (recvdData[0] & 0b1110_0000) == typeFragment;
+	}
+
+	/**
+	 * @param packet The packet to examine
+	 * @return Whether the packet carries app data (data, aggregate or fragment) and so must be ACK'ed
+	 */
+	public static boolean carriesData(byte[] packet){
+		return isDataPacket(packet) || isAggregatePacket(packet) || isFragmentPacket(packet);
+	}
+
+	/**
+	 * @param packet a fragment packet
+	 * @return the position of the fragment in its payload
+	 */
+	public static int getFragmentNumber(byte[] packet){
+		return packet[SIZE_CONTROL+SIZE_ADDR*2] & 0x7F;
+	}
+
+	/**
+	 * @param packet a fragment packet
+	 * @return whether more fragments of the payload follow this one
+	 */
+	public static boolean hasMoreFragments(byte[] packet){
+		return (packet[SIZE_CONTROL+SIZE_ADDR*2] & 0x80) != 0;
+	}
+
+	/**
+	 * @param packet a fragment packet
+	 * @return the id its source gave the payload it belongs to
+	 */
+	public static int getPayloadId(byte[] packet){
+		return ((packet[SIZE_CONTROL+SIZE_ADDR*2+1] & 0xFF) << 8) | (packet[SIZE_CONTROL+SIZE_ADDR*2+2] & 0xFF);
+	}
+
+	/**
+	 * @param packet a fragment packet
+	 * @return the part of the payload the fragment carries
+	 */
+	public static byte[] getFragmentData(byte[] packet){
+		int start = SIZE_CONTROL+SIZE_ADDR*2+SIZE_FRAG_HEADER;
+		return Arrays.copyOfRange(packet, start, packet.length-SIZE_CRC);
+	}
+
 	public static boolean isACKPacket(byte[] recvdData){
 
 		byte typeACK = 0b0010_0000;
-		if((recvdData[0] & 0b1110000) == typeACK)
+		if((recvdData[0] & 0b1110_0000) == typeACK)
 			return true;
 		else
 			return false;
 	}
 
+	/**
+	 * @param packet The packet to examine
+	 * @return Whether or not the packet is a block ACK
+	 */
+	public static boolean isBlockAckPacket(byte[] packet){
+		int typeBlockAck = 0b1100_0000;
+		return (packet[0] & 0b1110_0000) == typeBlockAck && packet.length == SIZE_OVERHEAD + BLOCK_ACK_BITS/8;
+	}
+
+	/**
+	 * @param packet The packet to examine
+	 * @return Whether or not the packet is a BlockAckReq, a block ACK packet without a bitmap
+	 */
+	public static boolean isBlockAckReqPacket(byte[] packet){
+		int typeBlockAck = 0b1100_0000;
+		return (packet[0] & 0b1110_0000) == typeBlockAck && packet.length == SIZE_OVERHEAD;
+	}
+
+	/**
+	 * @param packet a block ACK packet
+	 * @return the bitmap of received sequence numbers, bit 0 is the packet's sequence number
+	 */
+	public static int getBlockAckBitmap(byte[] packet){
+		return ByteBuffer.wrap(packet, SIZE_CONTROL+SIZE_ADDR*2, BLOCK_ACK_BITS/8).getInt();
+	}
+
+	/**
+	 * @param packet The packet to examine
+	 * @return Whether or not the packet is an RTS
+	 */
+	public static boolean isRTSPacket(byte[] packet){
+		int typeRTS = 0b1010_0000;
+		return (packet[0] & 0b1110_0000) == typeRTS;
+	}
+
+	/**
+	 * @param packet The packet to examine
+	 * @return Whether or not the packet is a CTS
+	 */
+	public static boolean isCTSPacket(byte[] packet){
+		int typeCTS = 0b1000_0000;
+		return (packet[0] & 0b1110_0000) == typeCTS;
+	}
+
+	/**
+	 * @param packet an RTS or CTS packet
+	 * @return the ms the medium is reserved for after the packet
+	 */
+	public static int getDuration(byte[] packet){
+		return ByteBuffer.wrap(packet, SIZE_CONTROL+SIZE_ADDR*2, SIZE_DURATION).getShort() & 0xFFFF;
+	}
+
 	public static boolean isBeaconFrame(byte[] packet){
 		byte typeBeacon = 0b0100_0000;
 		if((packet[0] & 0b1110_0000) == typeBeacon)
@@ -218,12 +593,61 @@ public class PacketManipulator {
 	}
 	
 	public static long getTimeFromBeacon(byte[] packet){
-		byte[] time = new byte[8]; //8 bytes for a long
-		for(int i=6;i<6+8;i++){
-			time[i-6] = packet[i];
-		}
-		
-		return ByteBuffer.wrap(time).getLong();
+		return ByteBuffer.wrap(packet).getLong(SIZE_CONTROL+SIZE_ADDR*2); //The 8 byte time follows the addresses
+	}
+
+	/**
+	 * @param packet a beacon
+	 * @return its capability bits, 0 if the beacon is from a station that doesn't send them
+	 */
+	public static int getBeaconCapabilities(byte[] packet){
+		if(packet.length < SIZE_OVERHEAD+8+1)
+			return 0;
+		return packet[SIZE_CONTROL+SIZE_ADDR*2+8] & 0xFF;
+	}
+
+	/**
+	 * @param packet a packet occupying its buffer from position to limit
+	 * @return the destination address in the packet
+	 */
+	public static short getDestAddr(ByteBuffer packet){
+		return packet.getShort(packet.position()+SIZE_CONTROL);
+	}
+
+	/**
+	 * @param packet a packet occupying its buffer from position to limit
+	 * @return the source address in the packet
+	 */
+	public static short getSourceAddr(ByteBuffer packet){
+		return packet.getShort(packet.position()+SIZE_CONTROL+SIZE_ADDR);
+	}
+
+	/**
+	 * @param packet a packet occupying its buffer from position to limit
+	 * @return the sequence number in the packet
+	 */
+	public static int getSeqNum(ByteBuffer packet){
+		return packet.getShort(packet.position()) & 0x0FFF; //Low 4 bits of the first byte and all of the second
+	}
+
+	/**
+	 * @param packet a beacon occupying its buffer from position to limit
+	 * @return the time in the beacon
+	 */
+	public static long getTimeFromBeacon(ByteBuffer packet){
+		return packet.getLong(packet.position()+SIZE_CONTROL+SIZE_ADDR*2);
+	}
+
+	/**
+	 * Gives the data of a packet without copying it
+	 * @param packet a packet occupying its buffer from position to limit
+	 * @return a view of the bytes between the addresses and the CRC, sharing the packet's storage
+	 */
+	public static ByteBuffer getDataView(ByteBuffer packet){
+		ByteBuffer view = packet.duplicate();
+		view.position(packet.position()+SIZE_CONTROL+SIZE_ADDR*2);
+		view.limit(packet.limit()-SIZE_CRC);
+		return view.slice();
 	}
 	
 
@@ -240,6 +664,18 @@ public class PacketManipulator {
 			output.print("(ACK)");
 		else if(PacketManipulator.isBeaconFrame(packet))
 			output.print("(BEACON)");
+		else if(PacketManipulator.isAggregatePacket(packet))
+			output.print("(AGGREGATE)");
+		else if(PacketManipulator.isBlockAckPacket(packet))
+			output.print("(BLOCK ACK)");
+		else if(PacketManipulator.isBlockAckReqPacket(packet))
+			output.print("(BLOCK ACK REQ)");
+		else if(PacketManipulator.isRTSPacket(packet))
+			output.print("(RTS)");
+		else if(PacketManipulator.isCTSPacket(packet))
+			output.print("(CTS)");
+		else if(PacketManipulator.isFragmentPacket(packet))
+			output.print("(FRAGMENT "+PacketManipulator.getFragmentNumber(packet)+")");
 
 		output.println(PacketManipulator.getSourceAddr(packet) + ":" + PacketManipulator.getDestAddr(packet));
 	}
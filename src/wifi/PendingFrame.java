@@ -0,0 +1,37 @@
+package wifi;
+
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A data frame that has been handed to the Sender and is waiting to be transmitted or ACK'ed
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+class PendingFrame {
+	byte[] packet; //The fully built packet
+	short dest; //Destination MAC address
+	int seqNum; //Sequence number carried in the header, assigned when the frame leaves its queue
+	int retries = 0; //Number of times this frame has been retransmitted
+	long sentTime = 0; //The station's clock() when the frame was last transmitted, 0 if it hasn't been yet
+	boolean timedOut = false; //Its ACK timed out and it is waiting to be retransmitted
+	long queuedTime; //The station's clock() when the frame was queued
+	Vector<byte[]> payloads; //Payloads packed into an aggregate frame, null for other frames
+	int accessCategory = LinkLayer.AC_BEST_EFFORT; //The EDCA access category it contends in
+	boolean crc32c = false; //Checksummed with CRC32C because the destination advertised it, decided when the frame leaves its queue
+	Vector<CompletableFuture<DeliveryReport>> deliveries = new Vector<CompletableFuture<DeliveryReport>>(); //Asynchronous sends riding in this frame, completed when it is ACK'ed or given up on
+
+	/**
+	 * @param packet the fully built packet
+	 * @param queuedTime the station's clock() now
+	 */
+	PendingFrame(byte[] packet, long queuedTime){
+		this.packet = packet;
+		this.dest = PacketManipulator.getDestAddr(packet);
+		this.seqNum = PacketManipulator.getSeqNum(packet);
+		this.queuedTime = queuedTime;
+		if(PacketManipulator.isAggregatePacket(packet))
+			this.payloads = PacketManipulator.getSubframes(packet);
+	}
+}
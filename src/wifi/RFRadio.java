@@ -0,0 +1,44 @@
+package wifi;
+
+import rf.RF;
+
+/**
+ * The RF layer as a Radio, broadcasting on the local network
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public class RFRadio implements Radio {
+	private RF theRF;
+
+	/**
+	 * @param rf the RF layer to send and listen with
+	 */
+	public RFRadio(RF rf){
+		this.theRF = rf;
+	}
+
+	public int transmit(byte[] packet){
+		return theRF.transmit(packet);
+	}
+
+	public byte[] receive(){
+		return theRF.receive();
+	}
+
+	public boolean inUse(){
+		return theRF.inUse();
+	}
+
+	public long clock(){
+		return theRF.clock();
+	}
+
+	public long getIdleTime(){
+		return theRF.getIdleTime();
+	}
+
+	public boolean dataWaiting(){
+		return theRF.dataWaiting();
+	}
+}
@@ -0,0 +1,45 @@
+package wifi;
+
+/**
+ * The radio a station transmits and listens with
+ * LinkLayer, Sender and Receiver only use these calls, so a station can run over the RF layer
+ * (RFRadio) or over an in-process SharedMedium.  Times are in ms like RF's.
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public interface Radio {
+
+	/**
+	 * Sends a packet, blocking for as long as the radio is busy sending it
+	 * @param packet the packet
+	 * @return the number of bytes sent
+	 */
+	int transmit(byte[] packet);
+
+	/**
+	 * Blocks until a packet arrives
+	 * @return the packet
+	 */
+	byte[] receive();
+
+	/**
+	 * @return true if something is being sent on the medium right now
+	 */
+	boolean inUse();
+
+	/**
+	 * @return the radio's clock in ms
+	 */
+	long clock();
+
+	/**
+	 * @return ms since the medium last went idle, 0 if it is in use
+	 */
+	long getIdleTime();
+
+	/**
+	 * @return true if receive() would return a packet without blocking
+	 */
+	boolean dataWaiting();
+}
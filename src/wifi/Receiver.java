@@ -1,6 +1,11 @@
 package wifi;
 
+import java.io.ByteArrayOutputStream;
 import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -8,69 +13,518 @@ import rf.RF;
 
 
 /**
- * A class that listens for data on the RF layer
+ * A class that listens for data on the radio
  * @author Evan Carlin and Ethan Russell
  * @version 04/03/2016
  *
  */
 public class Receiver implements Runnable {
 
-	private RF theRF;
+	private LinkLayer link; //The station this receiver belongs to, for its settings and clock
+	private Radio theRF;
 	private PrintWriter output;
-	private Vector<byte[]> dataRcvd; //Received data packets
+	private Vector<Transmission> dataRcvd; //Received data, one entry per payload
 	private ConcurrentLinkedQueue<byte[]> acksToSend; //Acks we need to send
-	private ConcurrentLinkedQueue<byte[]> rcvdACK;  //Acks we've received
 	private short ourMAC; //our MAC address
+	private Sender sender; //Woken up when we queue an ACK, and handed the ACKs we receive
+	private HashMap<Short, Integer> expectedSeq = new HashMap<Short, Integer>(); //Next in-order sequence number from each source
+	private HashMap<Short, HashMap<Integer, byte[]>> reorderBuffer = new HashMap<Short, HashMap<Integer, byte[]>>(); //Frames that arrived ahead of a gap, per source
+	private Timer blockAckTimer = new Timer(); //Flushes coalesced ACKs after link.blockAckDelay, and releases frames held behind a gap
+	private HashMap<Short, Integer> blockAckStart = new HashMap<Short, Integer>(); //First sequence number of each source's pending block ACK
+	private HashMap<Short, Integer> blockAckBitmap = new HashMap<Short, Integer>(); //Sequence numbers received from each source but not ACK'ed yet
+	private HashMap<Short, BlockAckFlush> blockAckFlushes = new HashMap<Short, BlockAckFlush>(); //Pending flush of each source's block ACK
+	private HashMap<Short, ReorderRelease> reorderHolds = new HashMap<Short, ReorderRelease>(); //Pending releases of frames held behind a gap, per source
 
-	Receiver(RF rf, Vector<byte[]> data, short ourMAC, ConcurrentLinkedQueue<byte[]> rcvdACK, ConcurrentLinkedQueue<byte[]> acksToSend, PrintWriter output){
+	private static final int MAX_REASSEMBLIES = 8; //Payloads we rebuild at once, the oldest is dropped to make room
+	private static final int MAX_CACHED_SOURCES = 16; //Sources the duplicate cache remembers at once
+	private static final int REASSEMBLY_TIMEOUT = 10000; //ms we wait for the rest of a fragmented payload
+	//ms we hold frames behind a gap: every try of the missing frame waits out at most the longest backoff and ACK timeout, so by then its sender has given up on it
+	private static final int REORDER_HOLD = (RF.dot11RetryLimit + 1) * (RF.aCWmax*RF.aSlotTime + Sender.MAX_ACK_TIMEOUT);
+	private HashMap<Integer, Reassembly> reassemblies = new HashMap<Integer, Reassembly>(); //Partially received payloads, by source and payload id
+	private DuplicateCache recentFrames = new DuplicateCache(MAX_CACHED_SOURCES, 2*LinkLayer.WINDOW_SIZE); //Data frames accepted lately, to spot retransmissions we already have
+	private HashSet<Short> crc32cSources = new HashSet<Short>(); //Sources whose last good packet used CRC32C, so we check that first
+
+	Receiver(LinkLayer link, Radio rf, Vector<Transmission> data, short ourMAC, ConcurrentLinkedQueue<byte[]> acksToSend, Sender sender, PrintWriter output){
+		this.link = link;
 		this.theRF = rf;
+		this.sender = sender;
 		this.dataRcvd = data;
-		this.rcvdACK = rcvdACK;
 		this.ourMAC = ourMAC;
 		this.acksToSend = acksToSend;
 		this.output = output;
 	}
-	@Override
-	public void run() {
 
-		while(true){
-			byte[] packet = this.theRF.receive(); //block until a packet is received
+	/**
+	 * Checks whether a data packet's payloads fit in the receive queue
+	 * The queue is bounded by link.rxQueueFrames payloads and link.rxQueueBytes bytes,
+	 * but an empty queue always takes the packet.  An aggregate packet counts as every payload
+	 * it carries, since each becomes its own Transmission.
+	 * @param packet the data, aggregate or fragment packet
+	 * @return true if it can be accepted
+	 */
+	private boolean hasRoom(byte[] packet){
+		int payloads = 1;
+		int bytes = packet.length - PacketManipulator.SIZE_OVERHEAD;
+		if(PacketManipulator.isAggregatePacket(packet)){
+			payloads = PacketManipulator.getSubframeCount(packet);
+			bytes -= payloads*PacketManipulator.SIZE_SUBFRAME_LEN;
+		}
+		synchronized(dataRcvd){
+			if(dataRcvd.isEmpty())
+				return true;
+			if(dataRcvd.size() + payloads > link.rxQueueFrames)
+				return false;
+			if(link.rxQueueBytes < 0)
+				return true;
+			for(Transmission t : dataRcvd)
+				bytes += t.getBuf().length;
+			return bytes <= link.rxQueueBytes;
+		}
+	}
 
+	/**
+	 * Checks a packet's CRC before anything else looks at it
+	 * Peers use CRC32C instead of CRC32 once our beacons have told them we check it, so a packet
+	 * that fails one is tried with the other, starting with whichever its source used last time
+	 * @param packet the packet as it came off the air
+	 * @return true if either checksum matches
+	 */
+	private boolean checkCRC(byte[] packet){
+		if(packet.length < PacketManipulator.SIZE_OVERHEAD)
+			return false;
+		short srcAddr = PacketManipulator.getSourceAddr(packet);
+		boolean crc32c = crc32cSources.contains(srcAddr);
+		if(PacketManipulator.hasValidCRC(packet, crc32c))
+			return true;
+		if(!PacketManipulator.hasValidCRC(packet, !crc32c))
+			return false;
+		if(crc32c) //The source switched
+			crc32cSources.remove(srcAddr);
+		else
+			crc32cSources.add(srcAddr);
+		return true;
+	}
 
-			//Check to make sure we are the desired destination or -1 for a broadcast message
-			short destAddr = PacketManipulator.getDestAddr(packet);
-			if(destAddr == this.ourMAC || destAddr == -1){ //This is intended for us
+	/**
+	 * Queues a payload for recv() and wakes up anyone blocked in it
+	 * @param t the received payload
+	 */
+	private void queueForApp(Transmission t){
+		synchronized(dataRcvd){
+			dataRcvd.add(t);
+			sender.timer.wake(dataRcvd);
+		}
+	}
 
-				if(PacketManipulator.isBeaconFrame(packet)){ //If it is a beacon frame then update our clock
-					LinkLayer.updateClock(PacketManipulator.getTimeFromBeacon(packet));
-				}
-				else{
-					if(dataRcvd.size() < 5){ //Drop the incoming packet if there are already 4 queued up
-						if(PacketManipulator.isDataPacket(packet)){
-							dataRcvd.add(packet);
-							if(destAddr != -1){ //We don't ACK broadcast packets
-
-								short srcAddr = PacketManipulator.getSourceAddr(packet);
-								int seqNum = PacketManipulator.getSeqNum(packet);
-								byte[] ackPacket =  PacketManipulator.buildACKPacket(srcAddr, this.ourMAC, seqNum);
-								//throw ackPacket on shared queue
-								acksToSend.add(ackPacket);
-							}
-						}else if(PacketManipulator.isACKPacket(packet))
-							rcvdACK.add(packet);
-					}
-				}
+	/**
+	 * Hands a data packet to the app, splitting an aggregate packet into one Transmission per payload
+	 * and collecting fragments until their payload is complete
+	 * Broadcasts come here from the receive thread and held frames from the timer thread, hence synchronized
+	 * @param packet the data, aggregate or fragment packet
+	 */
+	private synchronized void deliver(byte[] packet){
+		short srcAddr = PacketManipulator.getSourceAddr(packet);
+		short destAddr = PacketManipulator.getDestAddr(packet);
+		if(PacketManipulator.isFragmentPacket(packet))
+			reassemble(packet);
+		else if(PacketManipulator.isAggregatePacket(packet)){
+			for(byte[] payload : PacketManipulator.getSubframes(packet))
+				queueForApp(new Transmission(srcAddr, destAddr, payload));
+		}
+		else
+			queueForApp(new Transmission(srcAddr, destAddr, PacketManipulator.getData(packet)));
+	}
+
+	/**
+	 * Adds a fragment to its partially received payload and delivers the payload once the last
+	 * fragment is in.  A source's payloads are told apart by the payload id in their fragments,
+	 * since fragments of payloads to different destinations or in different access categories
+	 * interleave.  The fragments of one payload arrive in order, so a fragment number we didn't
+	 * expect means one was lost for good and the partial payload is dropped.
+	 * @param packet the fragment packet
+	 */
+	private void reassemble(byte[] packet){
+		short srcAddr = PacketManipulator.getSourceAddr(packet);
+		int fragmentNum = PacketManipulator.getFragmentNumber(packet);
+		int key = (srcAddr & 0xFFFF) << 16 | PacketManipulator.getPayloadId(packet);
+		long now = link.clock();
+
+		Integer oldest = null;
+		for(Integer payload : reassemblies.keySet().toArray(new Integer[0])){ //Forget payloads that have gone quiet
+			if(now - reassemblies.get(payload).lastFragmentTime > REASSEMBLY_TIMEOUT)
+				dropReassembly(payload, "timed out");
+			else if(oldest == null || reassemblies.get(payload).lastFragmentTime < reassemblies.get(oldest).lastFragmentTime)
+				oldest = payload;
+		}
+
+		Reassembly partial = reassemblies.get(key);
+		if(fragmentNum == 0){ //Start of a new payload
+			if(partial != null)
+				dropReassembly(key, "was never finished");
+			else if(reassemblies.size() >= MAX_REASSEMBLIES)
+				dropReassembly(oldest, "was evicted");
+			partial = new Reassembly();
+			reassemblies.put(key, partial);
+		}
+		else if(partial == null || partial.nextFragment != fragmentNum){
+			if(partial != null)
+				dropReassembly(key, "is missing fragment "+partial.nextFragment);
+			return;
+		}
+
+		byte[] fragment = PacketManipulator.getFragmentData(packet);
+		partial.data.write(fragment, 0, fragment.length);
+		partial.nextFragment++;
+		partial.lastFragmentTime = now;
+		if(!PacketManipulator.hasMoreFragments(packet)){ //That was the last one
+			reassemblies.remove(key);
+			queueForApp(new Transmission(srcAddr, PacketManipulator.getDestAddr(packet), partial.data.toByteArray()));
+		}
+	}
+
+	/**
+	 * Throws away a partially received payload
+	 * @param payload its source in the high 16 bits and its payload id in the low 16
+	 * @param reason why, for the diagnostic output
+	 */
+	private void dropReassembly(int payload, String reason){
+		reassemblies.remove(payload);
+		link.metrics.increment(MacMetrics.REASSEMBLY_DROPS);
+		if(link.diagLevel >= 1) this.output.println("Dropping fragmented payload "+(payload & 0xFFFF)+" from "+(short)(payload >>> 16)+" because it "+reason+" ("+link.metrics.get(MacMetrics.REASSEMBLY_DROPS)+" dropped so far)");
+	}
+
+	/**
+	 * Puts a unicast data packet into its source's receive window and hands every frame
+	 * that is now in order to the app.  Frames from behind the window are duplicates
+	 * of ones we already delivered, so they are dropped (but still ACK'ed by the caller).
+	 * A frame past the end of the window means the sender gave up on the frames at the start
+	 * of it, so the window slides forward and whatever we buffered there is released.
+	 * Frames held behind a gap for REORDER_HOLD are released the same way.
+	 * The first frame from a new source may have overtaken older ones that are being retried, so
+	 * its window starts as far back as the frame allows until the source's BlockAckReq says where.
+	 * @param packet the data packet that was received
+	 */
+	private synchronized void deliverInOrder(byte[] packet){
+		short srcAddr = PacketManipulator.getSourceAddr(packet);
+		int seqNum = PacketManipulator.getSeqNum(packet);
+		Integer expected = expectedSeq.get(srcAddr);
+		if(expected == null) //Held until we hear where the window starts, or REORDER_HOLD
+			expected = (seqNum - LinkLayer.WINDOW_SIZE + 1 + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE;
+
+		int offset = (seqNum - expected + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE;
+		if(offset >= LinkLayer.SEQ_NUM_SPACE - LinkLayer.WINDOW_SIZE){ //Already delivered
+			if(link.diagLevel >= 1) this.output.println("Dropping duplicate packet "+seqNum+" from "+srcAddr);
+			return;
+		}
+
+		HashMap<Integer, byte[]> buffered = bufferOf(srcAddr);
+		if(offset >= LinkLayer.WINDOW_SIZE){ //Slide the window so this frame is its last slot
+			int newStart = (seqNum - LinkLayer.WINDOW_SIZE + 1 + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE;
+			while(expected != newStart){
+				byte[] skipped = buffered.remove(expected);
+				if(skipped != null)
+					deliver(skipped);
+				expected = (expected + 1) % LinkLayer.SEQ_NUM_SPACE;
 			}
-			try{ //Sleep a bit
-				Thread.sleep(100); //sleep for 100ms
+		}
+
+		buffered.put(seqNum, packet);
+		releaseInOrder(srcAddr, expected);
+	}
+
+	/**
+	 * @param srcAddr a source
+	 * @return the frames from it held in its receive window, by sequence number
+	 */
+	private HashMap<Integer, byte[]> bufferOf(short srcAddr){
+		HashMap<Integer, byte[]> buffered = reorderBuffer.get(srcAddr);
+		if(buffered == null){
+			buffered = new HashMap<Integer, byte[]>();
+			reorderBuffer.put(srcAddr, buffered);
+		}
+		return buffered;
+	}
+
+	/**
+	 * Moves a source's receive window up to the oldest sequence number its sender still wants
+	 * ACK'ed, releasing what we buffered before it; the sender is done with everything earlier.
+	 * A source we haven't had data from yet starts its window there.
+	 * @param srcAddr the source
+	 * @param startSeqNum the sequence number from its BlockAckReq
+	 */
+	private synchronized void advanceWindow(short srcAddr, int startSeqNum){
+		Integer expected = expectedSeq.get(srcAddr);
+		if(expected == null){
+			bufferOf(srcAddr);
+			expectedSeq.put(srcAddr, startSeqNum);
+			return;
+		}
+		if(expected == startSeqNum)
+			return;
+		if((startSeqNum - expected + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE >= LinkLayer.SEQ_NUM_SPACE - LinkLayer.WINDOW_SIZE)
+			return; //Behind the window, a stale request
+		if(link.diagLevel >= 1) this.output.println(srcAddr+" is done with packets "+expected+" to "+(startSeqNum - 1 + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE);
+		HashMap<Integer, byte[]> buffered = reorderBuffer.get(srcAddr);
+		while(expected != startSeqNum){
+			byte[] skipped = buffered.remove(expected);
+			if(skipped != null)
+				deliver(skipped);
+			expected = (expected + 1) % LinkLayer.SEQ_NUM_SPACE;
+		}
+		releaseInOrder(srcAddr, expected);
+	}
+
+	/**
+	 * Hands the app every buffered frame from a source that is in order, starting at a sequence
+	 * number, and makes sure whatever is left behind a gap isn't held there forever
+	 * @param srcAddr the source
+	 * @param expected the first sequence number to release
+	 */
+	private void releaseInOrder(short srcAddr, int expected){
+		HashMap<Integer, byte[]> buffered = reorderBuffer.get(srcAddr);
+		while(buffered.containsKey(expected)){ //Release everything that is now in order
+			deliver(buffered.remove(expected));
+			expected = (expected + 1) % LinkLayer.SEQ_NUM_SPACE;
+		}
+		expectedSeq.put(srcAddr, expected);
+
+		ReorderRelease hold = reorderHolds.get(srcAddr);
+		if(buffered.isEmpty() && hold != null){ //The gap filled in
+			reorderHolds.remove(srcAddr);
+			sender.timer.cancel(hold);
+		}
+		else if(!buffered.isEmpty() && hold == null){
+			hold = new ReorderRelease(srcAddr);
+			reorderHolds.put(srcAddr, hold);
+			sender.timer.schedule(blockAckTimer, hold, REORDER_HOLD, 0);
+		}
+	}
+
+	/**
+	 * Gives up on the frames missing from the start of a source's window once they have been
+	 * held up for REORDER_HOLD, skipping to the first frame we buffered after them
+	 * @param srcAddr the source
+	 * @param hold the release that ran out
+	 */
+	private synchronized void releaseGap(short srcAddr, ReorderRelease hold){
+		if(reorderHolds.get(srcAddr) != hold) //The gap filled in meanwhile
+			return;
+		reorderHolds.remove(srcAddr);
+		int expected = expectedSeq.get(srcAddr);
+		int skip = LinkLayer.SEQ_NUM_SPACE;
+		for(int seqNum : reorderBuffer.get(srcAddr).keySet()) //Up to the buffered frame closest to the start of the window
+			skip = Math.min(skip, (seqNum - expected + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE);
+		if(link.diagLevel >= 1) this.output.println("Gave up waiting for "+skip+" packets from "+srcAddr+" starting at "+expected);
+		releaseInOrder(srcAddr, (expected + skip) % LinkLayer.SEQ_NUM_SPACE);
+	}
+
+	/**
+	 * ACKs a unicast data packet right away, or through a block ACK in block ACK mode
+	 * @param srcAddr the source of the data packet
+	 * @param seqNum its sequence number
+	 */
+	private void ack(short srcAddr, int seqNum){
+		if(link.blockAckDelay >= 0) //Block ACK mode
+			coalesceACK(srcAddr, seqNum);
+		else{
+			byte[] ackPacket =  PacketManipulator.buildACKPacket(srcAddr, this.ourMAC, seqNum);
+			//throw ackPacket on shared queue
+			acksToSend.add(ackPacket);
+			sender.wakeUp();
+		}
+	}
+
+	/**
+	 * Records that a data packet needs ACK'ing and holds the ACK so that the rest of the burst
+	 * from that source can share a single block ACK.  The BlockAckReq that ends the burst normally
+	 * asks for it; if that doesn't come the block ACK goes out when link.blockAckDelay has passed
+	 * or when a sequence number doesn't fit in the bitmap.
+	 * @param srcAddr the source of the data packet
+	 * @param seqNum its sequence number
+	 */
+	private synchronized void coalesceACK(short srcAddr, int seqNum){
+		Integer start = blockAckStart.get(srcAddr);
+		if(start != null && (seqNum - start + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE >= PacketManipulator.BLOCK_ACK_BITS){
+			flushBlockAck(srcAddr); //Doesn't fit so send what we have and start over
+			start = null;
+		}
+		if(start == null){
+			start = seqNum;
+			blockAckStart.put(srcAddr, start);
+			blockAckBitmap.put(srcAddr, 0);
+			BlockAckFlush flush = new BlockAckFlush(srcAddr);
+			blockAckFlushes.put(srcAddr, flush);
+			sender.timer.schedule(blockAckTimer, flush, Math.max(link.blockAckDelay, 0), 0);
+		}
+		int offset = (seqNum - start + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE;
+		blockAckBitmap.put(srcAddr, blockAckBitmap.get(srcAddr) | (1 << offset));
+	}
+
+	/**
+	 * Sends the pending block ACK for a source, if there is one
+	 * It isn't answering anything the source sent just now, so rather than going out after SIFS
+	 * like an ACK it contends for the medium like data and can't collide with the source's next frame
+	 * @param srcAddr the source whose packets we are ACK'ing
+	 */
+	private synchronized void flushBlockAck(short srcAddr){
+		Integer start = blockAckStart.remove(srcAddr);
+		Integer bitmap = blockAckBitmap.remove(srcAddr);
+		BlockAckFlush flush = blockAckFlushes.remove(srcAddr);
+		if(flush != null)
+			sender.timer.cancel(flush);
+		if(start == null)
+			return;
+		if(link.diagLevel >= 1) this.output.println("Block ACK'ing "+Integer.bitCount(bitmap)+" packets from "+srcAddr);
+		sender.queueControl(PacketManipulator.buildBlockAckPacket(srcAddr, this.ourMAC, start, bitmap));
+	}
+
+	/**
+	 * Answers a BlockAckReq with a block ACK after SIFS, like an ACK
+	 * The bitmap covers the 32 sequence numbers from the request's on and comes from the frames
+	 * we accepted lately, so it is right even if an earlier block ACK was lost.  Any block ACK we
+	 * were holding for the source is answered by this one.
+	 * @param srcAddr the source of the request
+	 * @param startSeqNum the oldest sequence number it still wants ACK'ed
+	 */
+	private synchronized void answerBlockAckReq(short srcAddr, int startSeqNum){
+		advanceWindow(srcAddr, startSeqNum);
+		int bitmap = 0;
+		for(int i=0; i<PacketManipulator.BLOCK_ACK_BITS; i++){
+			if(recentFrames.contains(srcAddr, (startSeqNum + i) % LinkLayer.SEQ_NUM_SPACE))
+				bitmap |= 1 << i;
+		}
+		blockAckStart.remove(srcAddr);
+		blockAckBitmap.remove(srcAddr);
+		BlockAckFlush flush = blockAckFlushes.remove(srcAddr);
+		if(flush != null)
+			sender.timer.cancel(flush);
+		sender.withdrawBlockAcks(srcAddr);
+		if(link.diagLevel >= 1) this.output.println("Block ACK'ing "+Integer.bitCount(bitmap)+" packets from "+srcAddr+" on request");
+		acksToSend.add(PacketManipulator.buildBlockAckPacket(srcAddr, this.ourMAC, startSeqNum, bitmap));
+		sender.wakeUp();
+	}
+
+	/**
+	 * Answers an RTS addressed to us with a CTS, passes a CTS addressed to us to the Sender,
+	 * and defers our own transmissions for the duration of any RTS/CTS between other stations
+	 * @param packet the RTS or CTS packet
+	 * @param destAddr its destination
+	 */
+	private void handleReservation(byte[] packet, short destAddr){
+		int duration = PacketManipulator.getDuration(packet);
+		if(destAddr != this.ourMAC){ //Someone else has the medium
+			sender.setNAV(duration);
+		}
+		else if(PacketManipulator.isRTSPacket(packet)){ //Sent after SIFS like an ACK
+			short srcAddr = PacketManipulator.getSourceAddr(packet);
+			int ctsDuration = Math.max(duration - LinkLayer.SIFS_TIME - LinkLayer.CONTROL_FRAME_TIME, 0); //What's left after SIFS and the CTS itself
+			acksToSend.add(PacketManipulator.buildCTSPacket(srcAddr, this.ourMAC, ctsDuration));
+			sender.wakeUp();
+		}
+		else
+			sender.ctsReceived(packet);
+	}
+
+	/**
+	 * Handles one packet from the radio: reservations, beacons, data for us and ACKs
+	 * @param packet the packet that was received
+	 */
+	private void handlePacket(byte[] packet){
+		if(!checkCRC(packet)){ //Corrupted on the way, nothing in it can be trusted
+			link.metrics.increment(MacMetrics.CRC_DROPS);
+			if(link.diagLevel >= 1) this.output.println("Dropping packet with a bad CRC ("+link.metrics.get(MacMetrics.CRC_DROPS)+" dropped so far)");
+			return;
+		}
+
+		//Check to make sure we are the desired destination or -1 for a broadcast message
+		short destAddr = PacketManipulator.getDestAddr(packet);
+		if(PacketManipulator.isRTSPacket(packet) || PacketManipulator.isCTSPacket(packet)){
+			handleReservation(packet, destAddr);
+		}
+		else if(destAddr == this.ourMAC || destAddr == -1){ //This is intended for us
+
+			if(PacketManipulator.isBeaconFrame(packet)){ //If it is a beacon frame then update our clock
+				link.metrics.increment(MacMetrics.BEACONS_RECEIVED);
+				link.updateClock(PacketManipulator.getTimeFromBeacon(packet));
+				sender.peerCapabilities(PacketManipulator.getSourceAddr(packet), PacketManipulator.getBeaconCapabilities(packet));
 			}
-			catch(InterruptedException e){ //If interrupted during sleep
-				if(LinkLayer.diagLevel >= 1) this.output.println("Interrupted while sleeping in Recv "+e);
-				LinkLayer.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+			else{
+				if(PacketManipulator.carriesData(packet)){
+					short srcAddr = PacketManipulator.getSourceAddr(packet);
+					int seqNum = PacketManipulator.getSeqNum(packet);
+					if(destAddr != -1 && PacketManipulator.isRetry(packet) && recentFrames.contains(srcAddr, seqNum)){ //We have it already, only our ACK got lost
+						link.metrics.increment(MacMetrics.DUPLICATES);
+						if(link.diagLevel >= 1) this.output.println("Re-ACKing duplicate packet "+seqNum+" from "+srcAddr+" ("+link.metrics.get(MacMetrics.DUPLICATES)+" duplicates so far)");
+						ack(srcAddr, seqNum);
+					}
+					else if(!hasRoom(packet)){ //Not ACK'ed either, so the sender tries again once recv() catches up
+						link.metrics.increment(MacMetrics.RX_OVERFLOW_DROPS);
+						if(link.diagLevel >= 1) this.output.println("Receive queue full, dropped packet "+seqNum+" from "+srcAddr);
+					}
+					else if(destAddr == -1){ //Broadcasts aren't ACK'ed or retransmitted so they skip reordering
+						link.metrics.increment(MacMetrics.RX_FRAMES);
+						deliver(packet);
+					}
+					else{ //Unicast data is delivered in order and ACK'ed
+						link.metrics.increment(MacMetrics.RX_FRAMES);
+						deliverInOrder(packet);
+						recentFrames.add(srcAddr, seqNum);
+						ack(srcAddr, seqNum);
+					}
+				}else if(PacketManipulator.isBlockAckReqPacket(packet)){
+					if(destAddr == this.ourMAC)
+						answerBlockAckReq(PacketManipulator.getSourceAddr(packet), PacketManipulator.getSeqNum(packet));
+				}else if(PacketManipulator.isACKPacket(packet) || PacketManipulator.isBlockAckPacket(packet)){
+					sender.ackReceived(packet);
+				}
 			}
 		}
+	}
+
+	@Override
+	public void run() {
+
+		while(true){
+			handlePacket(this.theRF.receive()); //block until a packet is received
+			while(this.theRF.dataWaiting()) //Drain whatever arrived meanwhile back to back
+				handlePacket(this.theRF.receive());
+		}
 
 	}
-}
 
+	//A payload whose fragments are still arriving
+	private static class Reassembly{
+		ByteArrayOutputStream data = new ByteArrayOutputStream(); //Fragments received so far, in order
+		int nextFragment = 0; //Fragment number we expect next
+		long lastFragmentTime; //link.clock() when the last fragment arrived
+	}
+
+	//Releases the frames held behind a gap from one source when it has lasted REORDER_HOLD
+	private class ReorderRelease extends TimerTask{
+		private short srcAddr;
 
+		ReorderRelease(short srcAddr){
+			this.srcAddr = srcAddr;
+		}
+
+		public void run() {
+			releaseGap(srcAddr, this);
+		}
+	}
+
+	//Sends the block ACK for one source when its coalescing delay is up
+	private class BlockAckFlush extends TimerTask{
+		private short srcAddr;
+
+		BlockAckFlush(short srcAddr){
+			this.srcAddr = srcAddr;
+		}
+
+		public void run() {
+			synchronized(Receiver.this){
+				if(blockAckFlushes.get(srcAddr) == this) //Not sent early or answered meanwhile
+					flushBlockAck(srcAddr);
+			}
+		}
+	}
+}
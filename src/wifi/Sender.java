@@ -3,9 +3,14 @@ package wifi;
 import rf.RF;
 
 import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 
@@ -17,7 +22,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
- * Sends packets over RF when they are supplied
+ * Sends packets over the radio when they are supplied
  * @author Evan Carlin and Ethan Russell
  * @version 04//03/2016
  *
@@ -25,39 +30,397 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class Sender implements Runnable {	
     public Timer beaconTimer;//create a new Timer
     public TimerTask sendBeacon;
-	private RF theRF; 
+	private LinkLayer link; //The station this sender belongs to, for its settings and clock
+	private Radio theRF; 
 	private PrintWriter output;
-	public Vector<byte[]> dataToTrans; //Data waiting to be transmitted
-	private ConcurrentLinkedQueue<byte[]> rcvdACK; //ACKS received in Receiver thread
+	private ConcurrentLinkedQueue<ReceivedAck> rcvdACK = new ConcurrentLinkedQueue<ReceivedAck>(); //ACKS received in Receiver thread
 	private ConcurrentLinkedQueue<byte[]> acksToSend; //ACKS waiting to be transmitted
+	private final Object workLock = new Object(); //Guards the transmit queues, signalled whenever data, an ACK or a beacon is queued
+	private Vector<PendingFrame> inFlight = new Vector<PendingFrame>(); //Frames transmitted but not yet ACK'ed, oldest first
 
-	private int cw = this.theRF.aCWmin; //The current collision window
-	private int collisionCount = 0; //The number of collisions that have occurred since the last successful transmit
-	private int reTrys = 0; //the number of times we have tried to send a packet
-	private final int ACK_TIMEOUT = this.theRF.aSIFSTime +400+ this.theRF.aSlotTime; // How long to wait for an ACK = SIFS + ACK Transmission Duration + SlotTime 
+	//Deficit round robin over one queue per destination so a peer that isn't answering only gets its share of the medium
+	private static final int QUANTUM = RF.aMPDUMaximumLength; //Bytes of credit a destination earns per round
+	private LinkedList<PendingFrame> controlQueue = new LinkedList<PendingFrame>(); //Beacons, held back block ACKs and BlockAckReqs skip the scheduler and go out as voice
+	private AccessCategory[] categories; //EDCA access categories indexed by LinkLayer.AC_VOICE..AC_BACKGROUND, highest priority first
+	private HashSet<Short> crc32cPeers = new HashSet<Short>(); //Stations whose beacons said they check CRC32C, guarded by workLock
+	private HashMap<Short, Integer> sequenceMap = new HashMap<Short, Integer>(); //maps mac addresses to the next sequence number, guarded by workLock
+	private int aggregatedPayloads = 0; //Payloads packed into an already queued frame instead of a frame of their own
+	private long aggregatedWaits = 0; //ms of AIFS and SIFS the packed payloads didn't wait, guarded by workLock
+	private long aggregatedBackoffSlots = 0; //Twice the mean backoff slots the packed payloads didn't count down, guarded by workLock
+	public MacTimer timer; //Times DIFS, SIFS and backoff slots, on the wall clock or a simulation's
 
-	private final int DIFS = this.theRF.aSIFSTime + 2*this.theRF.aSlotTime; 
-	private final int SIFS = this.theRF.aSIFSTime; 
+	private volatile int collisionCount = 0; //The number of collisions that have occurred since the last successful transmit, only written by this thread
+	static final int ACK_TIMEOUT = RF.aSIFSTime +LinkLayer.CONTROL_FRAME_TIME+ RF.aSlotTime; // How long to wait for an ACK = SIFS + ACK Transmission Duration + SlotTime, until we've measured a peer
+	private final int CTS_TIMEOUT = ACK_TIMEOUT; //A CTS comes back the same way an ACK does
+	private final int MIN_ACK_TIMEOUT = RF.aSIFSTime + RF.aSlotTime; //Adaptive timeouts never go below SIFS + SlotTime
+	static final int MAX_ACK_TIMEOUT = 8*ACK_TIMEOUT; //or above 8 default timeouts
+	private volatile long navUntil = 0; //link.clock() until which an overheard RTS/CTS reserved the medium
+	private int ctsSource = LinkLayer.BROADCAST_ADDR; //Who the last CTS for us came from, guarded by workLock
+	private HashMap<Short, RttEstimate> rttTable = new HashMap<Short, RttEstimate>(); //Round trip time estimates per destination
+	private HashSet<Short> windowsAnnounced = new HashSet<Short>(); //Destinations that answered a BlockAckReq, so they know where our window starts
 
+	private final int DIFS = RF.aSIFSTime + 2*RF.aSlotTime; 
+	private final int SIFS = RF.aSIFSTime; 
 
 
-	Sender(RF rfLayer, Vector<byte[]> data, ConcurrentLinkedQueue<byte[]> rcvdACK, ConcurrentLinkedQueue<byte[]>acksToSend, PrintWriter output){
+
+	Sender(LinkLayer link, Radio rfLayer, ConcurrentLinkedQueue<byte[]>acksToSend, PrintWriter output, MacTimer timer){
+		this.link = link;
 		this.theRF = rfLayer;
-		this.dataToTrans = data;
-		this.rcvdACK = rcvdACK;
+		this.timer = timer;
 		this.acksToSend = acksToSend;
 		this.output = output;
 		this.beaconTimer = new Timer();
 		this.sendBeacon = new BeaconProbe();
+		this.categories = new AccessCategory[]{ //802.11e defaults, except best effort keeps DCF's DIFS
+			new AccessCategory("Voice", 2, (RF.aCWmin+1)/4 - 1, (RF.aCWmin+1)/2 - 1),
+			new AccessCategory("Video", 2, (RF.aCWmin+1)/2 - 1, RF.aCWmin),
+			new AccessCategory("Best effort", 2, RF.aCWmin, RF.aCWmax),
+			new AccessCategory("Background", 7, RF.aCWmin, RF.aCWmax)};
+	}
+
+	/**
+	 * Hands the sender an ACK or block ACK the Receiver picked up
+	 * The arrival time is noted now so the round trip time isn't inflated by however long
+	 * the sender thread takes to get to it
+	 * @param ack the ACK packet
+	 */
+	public void ackReceived(byte[] ack){
+		link.metrics.increment(MacMetrics.ACKS_RECEIVED);
+		rcvdACK.add(new ReceivedAck(ack, link.clock()));
+		wakeUp();
+	}
+
+	/**
+	 * Hands the sender a CTS addressed to us
+	 * @param cts the CTS packet
+	 */
+	public void ctsReceived(byte[] cts){
+		synchronized(this.workLock){
+			ctsSource = PacketManipulator.getSourceAddr(cts);
+			timer.wake(this.workLock);
+		}
+	}
+
+	/**
+	 * Notes what a station can do, from the capability bits in its beacon
+	 * @param station the station's MAC address
+	 * @param capabilities the capability bits
+	 */
+	public void peerCapabilities(short station, int capabilities){
+		synchronized(this.workLock){
+			if((capabilities & PacketManipulator.BEACON_CRC32C) != 0)
+				crc32cPeers.add(station);
+			else
+				crc32cPeers.remove(station);
+		}
+	}
+
+	/**
+	 * Defers our transmissions because we overheard an RTS or CTS between other stations
+	 * @param duration ms the medium is reserved for, starting now
+	 */
+	public void setNAV(int duration){
+		navUntil = Math.max(navUntil, link.clock() + duration);
+		if(link.diagLevel >= 1) this.output.println("Medium reserved for "+duration+" ms");
+	}
+
+	/**
+	 * Carrier sense: the medium is busy if the radio hears something or an RTS/CTS reserved it
+	 * @return true if we must not transmit
+	 */
+	private boolean mediumBusy(){
+		return this.theRF.inUse() || link.clock() < navUntil;
+	}
+
+	/**
+	 * Queues a block ACK the Receiver held back or a BlockAckReq, to contend for the medium as voice like a beacon
+	 * @param packet the control packet
+	 */
+	public void queueControl(byte[] packet){
+		synchronized(this.workLock){
+			PendingFrame frame = new PendingFrame(packet, link.clock());
+			frame.accessCategory = LinkLayer.AC_VOICE;
+			controlQueue.add(frame);
+			timer.wake(this.workLock);
+		}
+	}
+
+	/**
+	 * Drops the held back block ACKs to a destination that haven't gone out yet, because a
+	 * block ACK answering its BlockAckReq covers them
+	 * @param dest the station the block ACKs were for
+	 */
+	public void withdrawBlockAcks(short dest){
+		synchronized(this.workLock){
+			controlQueue.removeIf(frame -> frame.dest == dest && PacketManipulator.isBlockAckPacket(frame.packet));
+		}
+	}
+
+	/**
+	 * Wakes the sender thread up because new data, an ACK or a beacon has been queued
+	 */
+	public void wakeUp(){
+		synchronized(this.workLock){
+			timer.wake(this.workLock);
+		}
+	}
+
+	/**
+	 * Adds a data packet to its destination's queue in an access category and wakes the sender thread
+	 * The packet's sequence number is filled in when it leaves the queue, so frames that overtake
+	 * lower priority ones queued before them don't have to wait for them at the receiver
+	 * @param packet the fully built packet
+	 * @param priority the access category, LinkLayer.AC_VOICE to LinkLayer.AC_BACKGROUND
+	 * @param delivery completed when the frame is ACK'ed or given up on, may be null
+	 * @return true if the packet was queued
+	 */
+	public boolean enqueue(byte[] packet, int priority, CompletableFuture<DeliveryReport> delivery){
+		PendingFrame frame = new PendingFrame(packet, link.clock());
+		AccessCategory category = categories[priority];
+		frame.accessCategory = priority;
+		if(delivery != null)
+			frame.deliveries.add(delivery);
+		synchronized(this.workLock){
+			LinkedList<PendingFrame> queue = category.txQueues.get(frame.dest);
+			if(queue == null){
+				queue = new LinkedList<PendingFrame>();
+				category.txQueues.put(frame.dest, queue);
+			}
+			if(!category.activeList.contains(frame.dest))
+				category.activeList.add(frame.dest);
+			boolean added = queue.add(frame);
+			timer.wake(this.workLock);
+			return added;
+		}
+	}
+
+	/**
+	 * Packs a payload into the newest queued aggregate frame for dest in an access category if that
+	 * frame hasn't been transmitted yet and still has room under aMPDUMaximumLength
+	 * @param dest the destination MAC address
+	 * @param data the payload
+	 * @param len the number of bytes of data to send
+	 * @param priority the access category
+	 * @param delivery completed when the frame is ACK'ed or given up on, may be null
+	 * @return true if the payload was packed, false if it needs a frame of its own
+	 */
+	public boolean appendToAggregate(short dest, byte[] data, int len, int priority, CompletableFuture<DeliveryReport> delivery){
+		synchronized(this.workLock){
+			LinkedList<PendingFrame> queue = categories[priority].txQueues.get(dest);
+			if(queue == null || queue.isEmpty())
+				return false;
+			PendingFrame frame = queue.getLast();
+			if(frame.payloads == null || frame.packet.length + PacketManipulator.SIZE_SUBFRAME_LEN + len > RF.aMPDUMaximumLength)
+				return false;
+			frame.payloads.add(Arrays.copyOf(data, len));
+			if(delivery != null)
+				frame.deliveries.add(delivery);
+			frame.packet = PacketManipulator.buildAggregatePacket(dest, PacketManipulator.getSourceAddr(frame.packet), frame.payloads, frame.seqNum);
+			AccessCategory category = categories[priority];
+			aggregatedPayloads++;
+			aggregatedWaits += this.SIFS + category.aifsn*RF.aSlotTime + this.SIFS; //Its AIFS, and the SIFS before its ACK
+			aggregatedBackoffSlots += category.cwMin; //A backoff drawn from [0, cwMin] averages cwMin/2 slots
+			timer.wake(this.workLock); //The frame may be full now
+			return true;
+		}
+	}
+
+	/**
+	 * Estimates the medium time aggregation has saved: every packed payload skipped its category's
+	 * AIFS, a backoff, a SIFS and an ACK, and only paid for its length field instead of a full
+	 * header and CRC.  The backoff is counted at its mean after a success, cwMin/2 slots.
+	 * @return a one line summary of the savings
+	 */
+	public String aggregationReport(){
+		int payloads;
+		long waits, backoffSlots;
+		synchronized(this.workLock){
+			payloads = aggregatedPayloads;
+			waits = aggregatedWaits;
+			backoffSlots = aggregatedBackoffSlots / 2;
+		}
+		int bytesSaved = payloads * (PacketManipulator.SIZE_OVERHEAD - PacketManipulator.SIZE_SUBFRAME_LEN + PacketManipulator.SIZE_OVERHEAD); //Header and CRC plus the ACK
+		long ackTime = payloads * (long)LinkLayer.CONTROL_FRAME_TIME;
+		long backoffTime = backoffSlots * RF.aSlotTime;
+		return payloads+" payloads aggregated, saving "+payloads+" frame exchanges, "+bytesSaved+" bytes and about "+(waits+ackTime+backoffTime)+" ms: "
+				+waits+" ms of AIFS/SIFS, "+ackTime+" ms of ACKs and "+backoffTime+" ms in "+backoffSlots+" backoff slots";
+	}
+
+	/**
+	 * Checks whether a payload fits in its destination's queue in an access category
+	 * The queue is bounded by link.txQueueFrames frames and link.txQueueBytes bytes of
+	 * packets, but an empty queue always takes one payload so nothing is too big to ever send
+	 * Must be called holding workLock
+	 * @param dest the destination MAC address
+	 * @param priority the access category
+	 * @param frames the number of frames the payload goes out in, more than 1 if it is fragmented
+	 * @param len the payload length in bytes, fragment headers included
+	 * @return true if it can be queued now
+	 */
+	private boolean hasRoom(short dest, int priority, int frames, int len){
+		LinkedList<PendingFrame> queue = categories[priority].txQueues.get(dest);
+		if(queue == null || queue.isEmpty())
+			return true;
+		if(queue.size() + frames > link.txQueueFrames)
+			return false;
+		if(link.txQueueBytes < 0)
+			return true;
+		int bytes = len + frames*PacketManipulator.SIZE_OVERHEAD;
+		for(PendingFrame frame : queue)
+			bytes += frame.packet.length;
+		return bytes <= link.txQueueBytes;
+	}
+
+	/**
+	 * Waits until a payload fits in its destination's queue in an access category
+	 * @param dest the destination MAC address
+	 * @param priority the access category
+	 * @param frames the number of frames the payload goes out in, more than 1 if it is fragmented
+	 * @param len the payload length in bytes, fragment headers included
+	 * @param timeout ms to wait at most, 0 to not wait, -1 to wait as long as it takes
+	 * @return true if there is room, false if we timed out
+	 */
+	public boolean awaitRoom(short dest, int priority, int frames, int len, long timeout){
+		long deadline = link.clock() + timeout;
+		synchronized(this.workLock){
+			while(!hasRoom(dest, priority, frames, len)){
+				long waitTime = 0; //0 waits until woken
+				if(timeout >= 0){
+					waitTime = deadline - link.clock();
+					if(waitTime <= 0)
+						return false;
+				}
+				try{
+					timer.waitOn(this.workLock, waitTime); //Woken whenever a frame leaves a queue
+				}
+				catch(InterruptedException e){ //If interrupted during wait
+					this.output.println("Interrupted while waiting for room in the queue "+e);
+					link.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return the number of frames waiting in the transmit queues, beacons and block ACKs included
+	 */
+	public int queuedFrames(){
+		int frames = 0;
+		synchronized(this.workLock){
+			frames += controlQueue.size();
+			for(AccessCategory category : categories){
+				for(LinkedList<PendingFrame> queue : category.txQueues.values())
+					frames += queue.size();
+			}
+		}
+		return frames;
+	}
+
+	/**
+	 * @return the number of frames transmitted and waiting for an ACK
+	 */
+	public int inFlightFrames(){
+		return inFlight.size();
+	}
+
+	/**
+	 * @return the number of collisions since the last frame was ACK'ed or given up on
+	 */
+	public int collisionCount(){
+		return collisionCount;
+	}
+
+	/**
+	 * @return one line per access category with its AIFS, collision window range and internal collisions
+	 */
+	public String accessCategoryReport(){
+		StringBuilder report = new StringBuilder();
+		synchronized(this.workLock){
+			for(AccessCategory category : categories)
+				report.append(String.format("%s: AIFS %d ms, CW %d-%d, %d internal collisions%n", category.name, aifs(category), category.cwMin, category.cwMax, category.internalCollisions));
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Hands out the next sequence number for a destination
+	 * Must be called holding workLock
+	 * @param dest the destination MAC address
+	 * @return the sequence number to put in the next packet to dest
+	 */
+	private int nextSeqNum(short dest){
+		Integer currentSeqNumber = sequenceMap.get(dest);
+		if(currentSeqNumber == null)
+			currentSeqNumber = 0; //always start with 0;
+		sequenceMap.put(dest, (currentSeqNumber + 1) % LinkLayer.SEQ_NUM_SPACE);
+		return currentSeqNumber;
+	}
+
+	/**
+	 * @param category an access category
+	 * @return its arbitration interframe space in ms, SIFS plus AIFSN slots
+	 */
+	private int aifs(AccessCategory category){
+		return this.SIFS + category.aifsn*RF.aSlotTime;
+	}
+
+	/**
+	 * Blocks until there is something to do or the oldest outstanding frame times out
+	 * The queues are checked while holding the lock so a wakeUp() can't slip in unnoticed
+	 */
+	private void waitForWork(){
+		synchronized(this.workLock){
+			while(acksToSend.isEmpty() && rcvdACK.isEmpty() && controlQueue.isEmpty() && !hasReadyFrame()){
+				long waitTime = 0; //0 waits until woken
+				long deadline = nextDeadline();
+				if(deadline != Long.MAX_VALUE){ //Only wait until the earliest ACK timeout or aggregation hold
+					waitTime = deadline - link.clock();
+					if(waitTime <= 0) //Already passed
+						return;
+				}
+				try{
+					timer.waitOn(this.workLock, waitTime);
+				}
+				catch(InterruptedException e){ //If interrupted during wait
+					this.output.println("Interrupted while waiting for data to brodcast "+e);
+					link.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+				}
+				if(waitTime > 0) //Re-check for timeouts after a timed wait
+					return;
+			}
+		}
+	}
+
+	/**
+	 * Finds the next time something could become sendable without being woken:
+	 * an outstanding frame's ACK timeout or the end of an aggregate frame's hold time
+	 * Must be called holding workLock
+	 * @return the link.clock() time or Long.MAX_VALUE if nothing is pending
+	 */
+	private long nextDeadline(){
+		long now = link.clock();
+		long deadline = Long.MAX_VALUE;
+		for(PendingFrame frame : inFlight)
+			deadline = Math.min(deadline, frame.sentTime + ackTimeout(frame.dest));
+		for(AccessCategory category : categories){
+			for(LinkedList<PendingFrame> queue : category.txQueues.values()){
+				if(!queue.isEmpty() && queue.getFirst().payloads != null && queue.getFirst().queuedTime + link.aggregationHold > now)
+					deadline = Math.min(deadline, queue.getFirst().queuedTime + link.aggregationHold);
+			}
+		}
+		return deadline;
 	}
 
 	/**
 	 * Waits for channel to be idle
 	 */
 	private void waitForIdleChannel(){
-		while(this.theRF.inUse()){
+		while(mediumBusy()){
 			try{ //Sleep for a bit before checking to see if idle
-				Thread.sleep(100); //Wait .1 seconds
+				timer.waitMillis(timer.pollInterval());
 			}
 			catch(InterruptedException e){ //If interrupted during sleep
 				this.output.println("Interrupted while waiting for Idle Channel "+e);
@@ -69,205 +432,697 @@ public class Sender implements Runnable {
 	 * Waits SIFS
 	 */
 	private void waitSIFS() {
-		if(LinkLayer.diagLevel >= 1) this.output.println("Waiting SIFS "+this.SIFS);
-		try{ //Sleep the thread for DIFS
-			Thread.sleep(this.SIFS); //sleep for DIFS
+		if(link.diagLevel >= 1) this.output.println("Waiting SIFS "+this.SIFS);
+		try{ //Sleep the thread for SIFS
+			timer.waitMillis(this.SIFS);
 		}
 		catch(InterruptedException e){ //If interrupted during sleep
-			LinkLayer.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+			link.statusCode = LinkLayer.UNSPECIFIED_ERROR;
 			this.output.println("Interrupted while waiting SIFS "+e);
 		}
 	}
 
 	/**
-	 * Waits DIFS
+	 * How long to wait for an ACK from a destination before retransmitting
+	 * Once we have timed an ACK from the destination this is SRTT + 4*RTTVAR (Jacobson/Karels),
+	 * before that it is the fixed ACK_TIMEOUT.  In block ACK mode it runs from the BlockAckReq
+	 * that ended the frame's burst, which is answered as quickly as an ACK.
+	 * @param dest the destination MAC address
+	 * @return the timeout in ms
 	 */
-	private void waitDIFS(){
-		if(LinkLayer.diagLevel >= 1) this.output.println("Waiting DIFS");
-		try{ //Sleep the thread for DIFS
-			Thread.sleep(this.DIFS); //sleep for DIFS
+	private long ackTimeout(short dest){
+		synchronized(rttTable){
+			RttEstimate estimate = rttTable.get(dest);
+			if(estimate == null)
+				return ACK_TIMEOUT;
+			return estimate.timeout;
 		}
-		catch(InterruptedException e){ //If interrupted during sleep
-			LinkLayer.statusCode = LinkLayer.UNSPECIFIED_ERROR;
-			this.output.println("Interrupted while waiting DIFS "+e);
+	}
+
+	/**
+	 * Feeds a data-to-ACK time into the destination's round trip time estimate
+	 * @param dest the destination MAC address
+	 * @param rtt the measured round trip time in ms
+	 */
+	private void updateRtt(short dest, long rtt){
+		synchronized(rttTable){
+			RttEstimate estimate = rttTable.get(dest);
+			if(estimate == null){ //First sample
+				estimate = new RttEstimate();
+				estimate.srtt = rtt;
+				estimate.rttvar = rtt / 2.0;
+				rttTable.put(dest, estimate);
+			}else{
+				estimate.rttvar = 0.75*estimate.rttvar + 0.25*Math.abs(estimate.srtt - rtt);
+				estimate.srtt = 0.875*estimate.srtt + 0.125*rtt;
+			}
+			estimate.samples++;
+			estimate.timeout = Math.min(Math.max((long)Math.ceil(estimate.srtt + 4*estimate.rttvar), MIN_ACK_TIMEOUT), MAX_ACK_TIMEOUT);
 		}
 	}
 
 	/**
-	 * Waits until an ACK arrives or a timeout occurs
-	 * @return true if we received an ACK before timeout
+	 * @return one line per destination with its round trip time estimate and ACK timeout
 	 */
-	private boolean waitForACK(int seqNum){
-		long startTime = LinkLayer.clock();
-		while(LinkLayer.clock() < (startTime + ACK_TIMEOUT)){ //we haven't timed out
-			if(!rcvdACK.isEmpty()){ //We've rcvd an ack
-				//Check to make sure it is the right seq #
-				byte[] ack = rcvdACK.poll(); //remove the ACK
-				int ackSeqNum = PacketManipulator.getSeqNum(ack);
-				this.cw = this.theRF.aCWmin; //Reset collision window because successful transmit
-				this.collisionCount = 0; //Reset the number of collisions because ""
-				if(ackSeqNum == seqNum){ //if the sequence number was wrong, ignore
-					if(LinkLayer.diagLevel >= 1) this.output.println("Packet has been ACK'ed");
-					LinkLayer.statusCode = LinkLayer.TX_DELIVERED;
-					return true; //Our packet has been ACK'ed correctly
+	public String rttReport(){
+		StringBuilder report = new StringBuilder();
+		synchronized(rttTable){
+			for(Short dest : rttTable.keySet()){
+				RttEstimate estimate = rttTable.get(dest);
+				report.append(String.format("%d: SRTT %.1f ms, RTTVAR %.1f ms, ACK timeout %d ms (%d samples)%n", dest, estimate.srtt, estimate.rttvar, estimate.timeout, estimate.samples));
+			}
+		}
+		if(report.length() == 0)
+			return "No round trip times measured yet, ACK timeout is "+ackTimeout((short)LinkLayer.BROADCAST_ADDR)+" ms"+System.lineSeparator();
+		return report.toString();
+	}
+
+	/**
+	 * Matches every ACK and block ACK the Receiver has queued against our outstanding frames
+	 * ACKs that don't match anything (duplicates, late ACKs) are ignored
+	 */
+	private void processACKs(){
+		ReceivedAck received;
+		while((received = rcvdACK.poll()) != null){
+			byte[] ack = received.packet;
+			short ackSource = PacketManipulator.getSourceAddr(ack);
+			int ackSeqNum = PacketManipulator.getSeqNum(ack);
+			if(PacketManipulator.isBlockAckPacket(ack)){ //Clear every packet in the bitmap in one go
+				windowsAnnounced.add(ackSource); //It has had a BlockAckReq from us
+				int bitmap = PacketManipulator.getBlockAckBitmap(ack);
+				for(int i=0; i<PacketManipulator.BLOCK_ACK_BITS; i++){
+					if((bitmap & (1 << i)) != 0)
+						retireFrame(ackSource, (ackSeqNum + i) % LinkLayer.SEQ_NUM_SPACE, received.time);
 				}
 			}
-			try{ //Sleep the thread for 20ms
-				Thread.sleep(20);
+			else
+				retireFrame(ackSource, ackSeqNum, received.time);
+		}
+	}
+
+	/**
+	 * Removes an ACK'ed frame from the outstanding frames
+	 * Frames that were retransmitted don't give an RTT sample because we can't tell which
+	 * transmission the ACK is for (Karn's algorithm)
+	 * @param dest the destination that ACK'ed it
+	 * @param seqNum its sequence number
+	 * @param ackTime link.clock() when the ACK arrived
+	 */
+	private void retireFrame(short dest, int seqNum, long ackTime){
+		for(int i=0; i<inFlight.size(); i++){
+			PendingFrame frame = inFlight.get(i);
+			if(frame.dest == dest && frame.seqNum == seqNum){
+				inFlight.remove(i);
+				if(link.diagLevel >= 1) this.output.println("Packet "+seqNum+" to "+dest+" has been ACK'ed");
+				if(frame.retries == 0)
+					updateRtt(dest, ackTime - frame.sentTime);
+				this.collisionCount = 0; //Reset the number of collisions because successful transmit
+				categories[frame.accessCategory].cw = categories[frame.accessCategory].cwMin;
+				link.metrics.increment(MacMetrics.TX_DELIVERED);
+				link.statusCode = LinkLayer.TX_DELIVERED;
+				complete(frame, LinkLayer.TX_DELIVERED, ackTime - frame.queuedTime);
+				return;
 			}
-			catch(InterruptedException e){ //If interrupted during sleep
-				this.output.println("Interrupted while sleeping waiting for an ACK "+e);
-				LinkLayer.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+		}
+	}
+
+	/**
+	 * Deals with every outstanding frame whose ACK has just timed out
+	 * A frame that has had dot11RetryLimit retries is given up on.  Any other is taken to have
+	 * collided: it waits to be retransmitted and its access category's collision window doubles
+	 * (up to CWmax) with a fresh backoff drawn from it.  Its destination loses the rest of its
+	 * round robin turn, so whichever destination is next in line sends when that backoff runs out
+	 * and one that went away can't spend a whole turn's credit on retries while the others wait.
+	 */
+	private void handleTimeouts(){
+		long now = link.clock();
+		for(int i=inFlight.size()-1; i>=0; i--){
+			PendingFrame frame = inFlight.get(i);
+			if(frame.timedOut || now < frame.sentTime + ackTimeout(frame.dest))
+				continue;
+			AccessCategory category = categories[frame.accessCategory];
+			link.metrics.increment(MacMetrics.ACK_TIMEOUTS);
+			if(frame.retries >= RF.dot11RetryLimit){ //we've reached the retry limit
+				if(link.diagLevel >= 1) this.output.println("Reached retry limit for packet "+frame.seqNum+" to "+frame.dest);
+				this.collisionCount = 0;
+				category.cw = category.cwMin;
+				link.metrics.increment(MacMetrics.RETRY_LIMIT_DROPS);
+				inFlight.remove(i); //Remove the packet we can't seem to send
+				link.statusCode = LinkLayer.TX_FAILED;
+				complete(frame, LinkLayer.TX_FAILED, -1);
+			}else{ //We timed out while waiting for an ACK so there must have been a collision
+				if (link.diagLevel >= 1) this.output.println("There was a collision");
+				this.collisionCount ++; //Increment the collision counter
+				link.metrics.increment(MacMetrics.COLLISIONS);
+				frame.timedOut = true;
+				if(frame.sentTime >= category.cwRaised){ //Frames sent before the window last grew already paid for this congestion
+					category.cw = Math.min(category.cw*2 + 1, category.cwMax); //Increase collision window
+					category.cwRaised = now;
+				}
+				drawBackoff(category);
+				synchronized(this.workLock){
+					if(!category.activeList.isEmpty() && category.activeList.getFirst() == frame.dest){ //Next destination's turn
+						category.activeList.addLast(category.activeList.removeFirst());
+						category.deficit.put(frame.dest, 0);
+						category.headGranted = false;
+					}
+				}
 			}
+		}
+	}
+
+	/**
+	 * Tells everyone waiting on a frame how it went
+	 * This runs on the sender thread, so anything slow should be chained with the futures' Async methods
+	 * @param frame the frame that was ACK'ed, given up on or (for broadcasts) transmitted
+	 * @param status LinkLayer.TX_DELIVERED or LinkLayer.TX_FAILED
+	 * @param latency ms from the send to the ACK, -1 if it wasn't delivered
+	 */
+	private void complete(PendingFrame frame, int status, long latency){
+		for(CompletableFuture<DeliveryReport> delivery : frame.deliveries)
+			delivery.complete(new DeliveryReport(frame.dest, status, frame.retries, latency));
+	}
+
+	/**
+	 * Finds the frame a destination would send in an access category if it were its turn: a timed
+	 * out frame that needs retransmitting, otherwise the head of its queue if its window has room
+	 * Must be called holding workLock
+	 * @param category the access category
+	 * @param dest the destination MAC address
+	 * @return the frame or null if the destination has nothing it can send right now
+	 */
+	private PendingFrame readyFrame(AccessCategory category, short dest){
+		long now = link.clock();
+		for(PendingFrame frame : inFlight){
+			if(frame.dest == dest && categories[frame.accessCategory] == category && frame.timedOut)
+				return frame;
+		}
+		LinkedList<PendingFrame> queue = category.txQueues.get(dest);
+		if(queue == null || queue.isEmpty())
+			return null;
+		PendingFrame head = queue.getFirst();
+		if(head.payloads != null && queue.size() == 1 && now < head.queuedTime + link.aggregationHold
+				&& head.packet.length + PacketManipulator.SIZE_SUBFRAME_LEN < RF.aMPDUMaximumLength)
+			return null; //Hold the aggregate a little longer so more payloads can join it
+		if(dest == LinkLayer.BROADCAST_ADDR || windowHasRoom(dest))
+			return head;
+		return null;
+	}
 
+	/**
+	 * @param category an access category
+	 * @return true if it has a beacon, a block ACK or a destination with a frame it could send right now
+	 */
+	private boolean hasReadyFrame(AccessCategory category){
+		synchronized(this.workLock){
+			if(category == categories[LinkLayer.AC_VOICE] && !controlQueue.isEmpty())
+				return true;
+			for(Short dest : category.activeList){
+				if(readyFrame(category, dest) != null)
+					return true;
+			}
+			return false;
 		}
-		if(LinkLayer.diagLevel >= 1) this.output.println("Timed out while waiting for ACK");
-		LinkLayer.statusCode = LinkLayer.TX_FAILED;
-		return false; //we timed out
 	}
 
 	/**
-	 * Wait SIFS and then send the ACK 
+	 * @return true if any access category has a frame it could send right now
 	 */
-	private void waitAndSendAck() {
-		waitSIFS(); //Wait SIFS		
-		if(LinkLayer.diagLevel >= 1) output.println("Sending ACK");
-		if(LinkLayer.diagLevel >= 1) PacketManipulator.printPacket(output, acksToSend.peek());
-		this.theRF.transmit(acksToSend.poll()); //transmit the frame
+	private boolean hasReadyFrame(){
+		for(AccessCategory category : categories){
+			if(hasReadyFrame(category))
+				return true;
+		}
+		return false;
 	}
 
 	/**
-	 * A method that waits DIFS and attempts to transmit a packet if the channel is idle
-	 * @return the sequence number of packet
+	 * Picks the next frame an access category should transmit using deficit round robin
+	 * Each destination earns QUANTUM bytes of credit when its turn comes and sends frames
+	 * (new or retransmitted) while its credit covers them.  Destinations that can't send
+	 * right now are passed over without earning credit, and ones with nothing queued or
+	 * outstanding leave the round.
+	 * @param category the access category
+	 * @return the frame to send (already removed from its queue) or null if nothing can go now
 	 */
-	private void waitAndSendData(){
-		byte[] packet = dataToTrans.get(0);
-		if(!this.theRF.inUse()){ //medium is idle				
-			waitDIFS(); //Wait DIFS		
-			if(!this.theRF.inUse()){ //medium is still idle
-				this.theRF.transmit(packet); //transmit the frame
-				if(LinkLayer.diagLevel >= 1) this.output.println("Transmitting data!");
-				LinkLayer.statusCode = LinkLayer.TX_DELIVERED;
-				return; //We transmitted the frame so we are done
+	private PendingFrame nextToSend(AccessCategory category){
+		synchronized(this.workLock){
+			if(category == categories[LinkLayer.AC_VOICE] && !controlQueue.isEmpty())
+				return controlQueue.poll();
+
+			LinkedList<Short> activeList = category.activeList;
+			int passedOver = 0; //Destinations in a row that couldn't send
+			while(passedOver < activeList.size()){
+				Short dest = activeList.getFirst();
+				LinkedList<PendingFrame> queue = category.txQueues.get(dest);
+				if((queue == null || queue.isEmpty()) && !hasInFlight(category, dest)){ //Nothing left for this destination
+					activeList.removeFirst();
+					category.deficit.remove(dest);
+					category.headGranted = false;
+					continue;
+				}
+
+				PendingFrame frame = readyFrame(category, dest);
+				if(frame != null){
+					if(!category.headGranted){
+						category.deficit.put(dest, (category.deficit.containsKey(dest) ? category.deficit.get(dest) : 0) + QUANTUM);
+						category.headGranted = true;
+					}
+					if(claim(category, dest, frame))
+						return frame;
+					passedOver = 0; //Its credit carries over to the next round
+				}else{
+					category.deficit.put(dest, 0); //Idle destinations don't bank credit
+					passedOver++;
+				}
+				activeList.addLast(activeList.removeFirst()); //Next destination's turn
+				category.headGranted = false;
 			}
+			return null;
 		}
-		//The channel was in use so we must wait for it to be idle
-		while(true){
-			waitForIdleChannel();
-			waitDIFS();
-			if(!this.theRF.inUse()) //The channel is finally idle
-				break;
+	}
+
+	/**
+	 * Picks the next frame of a burst: the destination at the head of the round robin sends
+	 * another frame without contending again while its credit covers it
+	 * @param category the access category that won the medium
+	 * @param dest the destination of the burst so far
+	 * @return the frame to send (already removed from its queue) or null if the burst is over
+	 */
+	private PendingFrame nextInBurst(AccessCategory category, short dest){
+		synchronized(this.workLock){
+			if(category.activeList.isEmpty() || category.activeList.getFirst() != dest || !category.headGranted)
+				return null;
+			PendingFrame frame = readyFrame(category, dest);
+			if(frame == null || !claim(category, dest, frame))
+				return null;
+			return frame;
 		}
-		backoffAndTransmit();  //Since the channel was in use we must go to the exponential backoff state
-		return; //We transmitted the frame so we are done!
 	}
 
 	/**
-	 * Enters the exponential backoff state to wait to transmit
+	 * Charges a frame to its destination's credit and, if it is a new frame, takes it off its
+	 * queue and numbers it
+	 * Must be called holding workLock
+	 * @param category the access category
+	 * @param dest the destination MAC address
+	 * @param frame the frame readyFrame() gave for dest
+	 * @return true if the credit covered it
 	 */
-	private void backoffAndTransmit(){
-		//Exponential backoff while medium idle
-		this.cw = this.cw*2 + 1; //Increase collision window
+	private boolean claim(AccessCategory category, short dest, PendingFrame frame){
+		int credit = category.deficit.get(dest);
+		if(frame.packet.length > credit)
+			return false;
+		category.deficit.put(dest, credit - frame.packet.length);
+		if(frame.sentTime == 0){ //A new frame rather than a retransmission
+			category.txQueues.get(dest).removeFirst();
+			frame.seqNum = nextSeqNum(dest);
+			frame.crc32c = link.crc32c && dest != LinkLayer.BROADCAST_ADDR && crc32cPeers.contains(dest);
+			PacketManipulator.setSeqNum(frame.packet, frame.seqNum, frame.crc32c);
+			timer.wake(this.workLock); //Senders blocked on a full queue
+		}
+		return true;
+	}
 
-		if(this.cw > this.theRF.aCWmax)
-			this.cw = this.theRF.aCWmax; //cw can't be greater than the max cw
+	/**
+	 * @param category an access category
+	 * @param dest the destination MAC address
+	 * @return true if a frame to dest from that category is waiting for an ACK
+	 */
+	private boolean hasInFlight(AccessCategory category, short dest){
+		for(PendingFrame frame : inFlight){
+			if(frame.dest == dest && categories[frame.accessCategory] == category)
+				return true;
+		}
+		return false;
+	}
 
-		if(LinkLayer.diagLevel >= 1) this.output.println("CW = " +this.cw);
+	/**
+	 * Checks whether the next new frame to dest still fits in the window
+	 * Must be called holding workLock
+	 * @param dest the destination MAC address
+	 * @return true if it can be sent without waiting for an ACK
+	 */
+	private boolean windowHasRoom(short dest){
+		int seqNum = sequenceMap.containsKey(dest) ? sequenceMap.get(dest) : 0;
+		for(PendingFrame frame : inFlight){
+			if(frame.dest == dest && (seqNum - frame.seqNum + LinkLayer.SEQ_NUM_SPACE) % LinkLayer.SEQ_NUM_SPACE >= LinkLayer.WINDOW_SIZE)
+				return false;
+		}
+		return true;
+	}
 
-		int backoff;
-		if(LinkLayer.slotRandom){
-			backoff = (int) ((Math.random()*this.cw) * this.theRF.aSlotTime);
-		}else{
-			backoff = (int) this.cw * this.theRF.aSlotTime;
+	/**
+	 * Marks a frame whose ACK timed out as a retransmission as it goes back on the air
+	 * @param frame the frame that timed out
+	 */
+	private void startRetransmission(PendingFrame frame){
+		frame.retries++;
+		frame.timedOut = false;
+		PacketManipulator.setRetryBit(frame.packet, frame.crc32c); //Lets the receiver spot it if it already has the frame
+		link.metrics.increment(MacMetrics.RETRIES);
+	}
+
+	/**
+	 * Picks the number of backoff slots an access category must count down before it sends
+	 * @param category the access category contending for the medium
+	 */
+	private void drawBackoff(AccessCategory category){
+		if(link.slotRandom)
+			category.backoffSlots = timer.random().nextInt(category.cw + 1); //Uniform over [0, cw]
+		else
+			category.backoffSlots = category.cw;
+		if(link.diagLevel >= 1) this.output.println(category.name+" CW = "+category.cw+", backoff = "+category.backoffSlots+" slots");
+	}
+
+	/**
+	 * Wait SIFS and then send the ACK 
+	 */
+	private void waitAndSendAck() {
+		waitSIFS(); //Wait SIFS		
+		if(link.diagLevel >= 1) output.println("Sending ACK");
+		if(link.diagLevel >= 1) PacketManipulator.printPacket(output, acksToSend.peek());
+		byte[] ack = acksToSend.poll();
+		this.theRF.transmit(ack); //transmit the frame
+		if(PacketManipulator.isACKPacket(ack) || PacketManipulator.isBlockAckPacket(ack)) //CTSs are sent from here too
+			link.metrics.increment(MacMetrics.ACKS_SENT);
+	}
+
+	/**
+	 * Contends for the medium the 802.11 EDCA way until one access category wins it
+	 * Every category with a frame it could send waits for the medium to be idle for its own AIFS
+	 * and then counts down its backoff slots, one aSlotTime at a time, only while the medium stays
+	 * idle: a busy medium freezes all counters and counting resumes once each category's AIFS has
+	 * passed again.  A category without a pending backoff that finds the medium idle for its AIFS
+	 * goes right away.  The backoff belongs to the category rather than to one of its frames, and
+	 * which frame the category sends is only decided once it has won.
+	 * When several categories are ready in the same slot the highest priority one wins and the
+	 * others back off as if they had collided, without the collision counting as a retry.
+	 * If an ACK needs sending or nothing is left to send we stop and return null; every category
+	 * keeps its remaining slots.
+	 * @return the category that may transmit now, or null if we stopped
+	 */
+	private AccessCategory contend(){
+		int idleSlots = 0; //Slots past SIFS the medium has been idle for
+		if(timer.precise && !mediumBusy()){ //Time the channel has already been idle counts towards AIFS and the backoffs
+			idleSlots = (int) Math.max((Math.min(this.theRF.getIdleTime(), link.clock() - navUntil) - this.SIFS) / RF.aSlotTime, 0);
+			for(AccessCategory category : categories){
+				if(category.backoffSlots > 0)
+					category.backoffSlots = Math.max(category.backoffSlots - Math.max(idleSlots - category.aifsn, 0), 0);
+			}
 		}
 
-		while(backoff > 0){ //wait the backoff while sensing and pausing when channel isn't idle
-			if(LinkLayer.diagLevel >= 1) this.output.println("Waiting backoff = "+backoff);
-			if(this.theRF.inUse()){ //the channel is in use so wait a little bit
-				try{ //Sleep the thread for aSlotTime
-					Thread.sleep(this.theRF.aSlotTime);
-					if(LinkLayer.diagLevel >= 1) this.output.println("Sleeping while waiting for idle channel");
+		while(true){
+			if(!acksToSend.isEmpty()) //ACKs can't wait for our backoff, we'll resume it later
+				return null;
+			processACKs(); //ACKs and timeouts meanwhile change who has something to send
+			handleTimeouts();
+			boolean[] ready = new boolean[categories.length]; //Frames queued meanwhile join in
+			boolean anyReady = false;
+			for(int i=0; i<categories.length; i++){
+				ready[i] = hasReadyFrame(categories[i]);
+				anyReady |= ready[i];
+			}
+			if(!anyReady)
+				return null;
+			if(mediumBusy()){ //Frozen until the medium has been idle for AIFS
+				for(int i=0; i<categories.length; i++){
+					if(ready[i] && categories[i].backoffSlots < 0)
+						drawBackoff(categories[i]); //The channel was in use so we must back off from CWmin
 				}
-				catch(InterruptedException e){ //If interrupted during sleep
-					if(LinkLayer.diagLevel >= 1) this.output.println("Interrupted while sleeping while waiting for idle channel in backoff "+e);
-					LinkLayer.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+				waitForIdleChannel();
+				waitSIFS();
+				idleSlots = 0;
+				continue;
+			}
+
+			AccessCategory winner = null;
+			for(int i=0; i<categories.length; i++){ //Highest priority first
+				AccessCategory category = categories[i];
+				if(!ready[i] || idleSlots < category.aifsn || category.backoffSlots > 0)
+					continue;
+				if(winner == null)
+					winner = category;
+				else{ //Internal collision
+					if(link.diagLevel >= 1) this.output.println(category.name+" lost an internal collision to "+winner.name);
+					category.internalCollisions++;
+					link.metrics.increment(MacMetrics.INTERNAL_COLLISIONS);
+					category.cw = Math.min(category.cw*2 + 1, category.cwMax);
+					drawBackoff(category);
 				}
 			}
+			if(winner != null)
+				return winner;
+
 			try{ //Sleep the thread for aSlotTime
-				Thread.sleep(this.theRF.aSlotTime); //sleep for DIFS
-				if(LinkLayer.diagLevel >= 1) this.output.println("Sleeping aSlotTime in backoff");
+				timer.waitMillis(RF.aSlotTime); //sleep for a slot
 			}
 			catch(InterruptedException e){ //If interrupted during sleep
-				if(LinkLayer.diagLevel >= 1) this.output.println("Interrupted while sleeping aSlotTime "+e);
-				LinkLayer.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+				if(link.diagLevel >= 1) this.output.println("Interrupted while sleeping aSlotTime "+e);
+				link.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+			}
+			if(mediumBusy() || (timer.precise && this.theRF.getIdleTime() < RF.aSlotTime)){ //Only a slot the medium stayed idle for counts
+				idleSlots = 0; //A SIFS gap in someone's burst isn't ours to take
+				continue;
 			}
-			backoff -= this.theRF.aSlotTime;
+			idleSlots++;
+			for(AccessCategory category : categories){
+				if(idleSlots > category.aifsn && category.backoffSlots > 0)
+					category.backoffSlots--;
+			}
+		}
+	}
+
+	/**
+	 * Puts a frame on the air
+	 * Unicast data longer than link.rtsThreshold first reserves the medium with an RTS.
+	 * If no CTS comes back the data isn't sent; the frame is marked as already timed out so
+	 * it goes through the usual retransmission (and retry limit) right away.
+	 * @param frame the frame to transmit
+	 * @return true if it went on the air, false if no CTS came back
+	 */
+	private boolean transmit(PendingFrame frame){
+		if(frame.timedOut)
+			startRetransmission(frame);
+		if(link.rtsThreshold >= 0 && frame.packet.length > link.rtsThreshold
+				&& frame.dest != LinkLayer.BROADCAST_ADDR && PacketManipulator.carriesData(frame.packet)){
+			if(!reserveMedium(frame)){
+				if(link.diagLevel >= 1) this.output.println("No CTS from "+frame.dest);
+				frame.sentTime = link.clock() - ackTimeout(frame.dest);
+				return false;
+			}
+			waitSIFS(); //The medium is ours, data follows the CTS after SIFS
+		}
+		this.theRF.transmit(frame.packet); //transmit the frame - the caller keeps it because we need to wait for an ACK
+		frame.sentTime = link.clock();
+		if(PacketManipulator.isBlockAckPacket(frame.packet)) //One the Receiver held back
+			link.metrics.increment(MacMetrics.ACKS_SENT);
+		else if(!PacketManipulator.isBlockAckReqPacket(frame.packet))
+			link.metrics.increment(MacMetrics.TX_ATTEMPTS);
+		if(PacketManipulator.isBeaconFrame(frame.packet))
+			link.metrics.increment(MacMetrics.BEACONS_SENT);
+		if(link.diagLevel >= 1) this.output.println("Transmitting data!");
+		if(link.diagLevel >= 1) PacketManipulator.printPacket(output,frame.packet);
+		return true;
+	}
+
+	/**
+	 * Transmits a frame and keeps track of it: unicast data waits in inFlight for its ACK and
+	 * a broadcast is done as soon as it is on the air
+	 * @param frame the frame to send
+	 * @return true if it went on the air
+	 */
+	private boolean sendFrame(PendingFrame frame){
+		boolean sent = transmit(frame);
+		if(frame.retries == 0 && frame.dest != LinkLayer.BROADCAST_ADDR && PacketManipulator.carriesData(frame.packet)){
+			inFlight.add(frame); //Keep it until it is ACK'ed while we move on to the next frame
+			if(link.blockAckDelay < 0) //A burst ends with a BlockAckReq anyway
+				announceWindow(frame.dest);
+		}
+		else if(frame.dest == LinkLayer.BROADCAST_ADDR)
+			complete(frame, LinkLayer.TX_DELIVERED, frame.sentTime - frame.queuedTime); //Nobody ACKs a broadcast
+		return sent;
+	}
+
+	/**
+	 * @param dest a destination
+	 * @param otherwise what to return if nothing to it is outstanding
+	 * @return the sequence number of the oldest frame to it still waiting for an ACK; everything before it is done with
+	 */
+	private int oldestOutstanding(short dest, int otherwise){
+		for(PendingFrame outstanding : inFlight){ //Oldest first
+			if(outstanding.dest == dest)
+				return outstanding.seqNum;
 		}
+		return otherwise;
+	}
 
-		//Transmit after waiting
-		this.theRF.transmit(dataToTrans.get(0)); //transmit the frame - don't remove it because we need to wait for an ACK
-		if(LinkLayer.diagLevel >= 1) this.output.println("Transmitting data!");
-		LinkLayer.statusCode = LinkLayer.TX_DELIVERED;
+	/**
+	 * Tells a destination where our window to it starts with a BlockAckReq, once per frame we
+	 * send it until it answers one.  A Receiver hearing from us for the first time can't tell
+	 * whether older frames are still on their way, so it holds what it gets until it knows.
+	 * The request contends as voice like a held back block ACK.
+	 * @param dest the destination of a unicast frame we just sent
+	 */
+	private void announceWindow(short dest){
+		if(windowsAnnounced.contains(dest))
+			return;
+		synchronized(this.workLock){
+			for(PendingFrame frame : controlQueue){
+				if(frame.dest == dest && PacketManipulator.isBlockAckReqPacket(frame.packet))
+					return; //One is on its way already
+			}
+		}
+		if(link.diagLevel >= 1) this.output.println("Telling "+dest+" where our window starts");
+		queueControl(PacketManipulator.buildBlockAckReqPacket(dest, link.ourMAC, oldestOutstanding(dest, 0)));
+	}
+
+	/**
+	 * Sends the rest of a burst to one destination in block ACK mode and ends it with a BlockAckReq
+	 * The frames follow each other after SIFS, so no other station gets the medium in between,
+	 * until the destination's credit or window runs out.  The BlockAckReq asks for the block ACK
+	 * right away and the ACK timeouts of the burst's frames run from it.
+	 * @param category the access category that won the medium
+	 * @param first the frame the burst started with, already sent
+	 */
+	private void burst(AccessCategory category, PendingFrame first){
+		Vector<PendingFrame> frames = new Vector<PendingFrame>();
+		frames.add(first);
+		PendingFrame frame;
+		while(acksToSend.isEmpty() && (frame = nextInBurst(category, first.dest)) != null){
+			waitSIFS();
+			if(sendFrame(frame))
+				frames.add(frame);
+		}
+
+		waitSIFS();
+		byte[] request = PacketManipulator.buildBlockAckReqPacket(first.dest, link.ourMAC, oldestOutstanding(first.dest, first.seqNum));
+		if(link.diagLevel >= 1) this.output.println("Asking "+first.dest+" for a block ACK of "+frames.size()+" packets");
+		if(link.diagLevel >= 1) PacketManipulator.printPacket(output, request);
+		this.theRF.transmit(request);
+		long now = link.clock();
+		for(PendingFrame sent : frames)
+			sent.sentTime = now;
+	}
+
+	/**
+	 * Sends an RTS for a frame and waits for the matching CTS
+	 * The RTS reserves the medium for CTS, data and ACK plus the SIFS before each
+	 * @param frame the data frame we want to send
+	 * @return true if the destination answered with a CTS in time
+	 */
+	private boolean reserveMedium(PendingFrame frame){
+		int duration = 3*this.SIFS + 3*LinkLayer.CONTROL_FRAME_TIME;
+		synchronized(this.workLock){
+			ctsSource = LinkLayer.BROADCAST_ADDR; //Forget any stale CTS
+		}
+		byte[] rts = PacketManipulator.buildRTSPacket(frame.dest, link.ourMAC, duration);
+		if(link.diagLevel >= 1) PacketManipulator.printPacket(output, rts);
+		this.theRF.transmit(rts);
+
+		long deadline = link.clock() + CTS_TIMEOUT;
+		synchronized(this.workLock){
+			while(ctsSource != frame.dest){
+				long waitTime = deadline - link.clock();
+				if(waitTime <= 0)
+					return false;
+				try{
+					timer.waitOn(this.workLock, waitTime);
+				}
+				catch(InterruptedException e){ //If interrupted during wait
+					this.output.println("Interrupted while waiting for CTS "+e);
+					link.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+					return false;
+				}
+			}
+			ctsSource = LinkLayer.BROADCAST_ADDR;
+			return true;
+		}
 	}
 
 	@Override
 	public void run() {
-	    beaconTimer.scheduleAtFixedRate(sendBeacon, 1000, LinkLayer.beaconInterval*1000);//add beacons to the data queue every beaconInterval seconds.  Wait 1 second after starting to send the first beacon.
+	    timer.schedule(beaconTimer, sendBeacon, 1000, link.beaconInterval*1000);//add beacons to the data queue every beaconInterval seconds.  Wait 1 second after starting to send the first beacon.
 		while(true){
-			while(!(dataToTrans.isEmpty() && acksToSend.isEmpty())){ //while there is data to transmit
-				if(!acksToSend.isEmpty()){
-					waitAndSendAck(); //acks get priority
-				}else{
-					waitAndSendData(); //Do necessary sensing, waiting, and transmitting
-					byte[] packet = dataToTrans.get(0);
-					if(LinkLayer.diagLevel >= 1) PacketManipulator.printPacket(output,packet);
-					int seqNum = PacketManipulator.getSeqNum(packet);
-					int dAddr = PacketManipulator.getDestAddr(packet);
-					if(dAddr == LinkLayer.BROADCAST_ADDR || waitForACK(seqNum)){ //After sending the packet wait for an ACK
-						dataToTrans.remove(0);; //Remove this packet
-						break; //We've rcvd the ACK so were all done with this packet!
-					}else{ //We timed out while waiting for an ACK so there must have been a collision
-						//Exponential backoff and retransmit
-						while(true){
-							this.reTrys++;
-							if(this.reTrys > this.theRF.dot11RetryLimit){ //we've reached the retry limit
-								if(LinkLayer.diagLevel >= 1) this.output.println("Reached retry limit!");
-								//Reset everything
-								this.reTrys = 0;
-								this.collisionCount = 0;
-								this.cw = this.theRF.aCWmin;
-								dataToTrans.remove(0); //Remove the packet we can't seem to send
-								break;
-							}
-							if (LinkLayer.diagLevel >= 1) this.output.println("There was a collision");
-							this.collisionCount ++; //Increment the collision counter
-							backoffAndTransmit();
-							if(dAddr == LinkLayer.BROADCAST_ADDR || waitForACK(seqNum)){ //After sending the packet wait for an ACK
-								dataToTrans.remove(0); //Remove this packet
-								break; //We've rcvd the ACK so were all done with this packet!
-							}
-							//else retry because we didn't retrieve an ACK
-						}
-					}
-				}
-			}
-			try{ //Sleep the thread a bit before checking again for new data
-				Thread.sleep(100); //Wait .1 second
+			if(!acksToSend.isEmpty()){
+				waitAndSendAck(); //acks get priority
+				continue;
 			}
-			catch(InterruptedException e){ //If interrupted during sleep
-				this.output.println("Interrupted while waiting for data to brodcast "+e);
-				LinkLayer.statusCode = LinkLayer.UNSPECIFIED_ERROR;
+			processACKs(); //Retire everything that has been ACK'ed
+			handleTimeouts(); //Retransmit or give up on what hasn't been
+
+			if(hasReadyFrame()){
+				AccessCategory winner = contend(); //Do necessary sensing and waiting
+				if(winner == null)
+					continue; //Deferred to an ACK, the backoffs are kept
+				winner.backoffSlots = -1;
+				PendingFrame frame = nextToSend(winner); //The destination whose turn it is gets the medium the category won
+				if(frame == null)
+					continue;
+				if(sendFrame(frame) && link.blockAckDelay >= 0 && frame.dest != LinkLayer.BROADCAST_ADDR && PacketManipulator.carriesData(frame.packet))
+					burst(winner, frame); //Block ACK mode, keep the medium for more frames to this destination
+				drawBackoff(winner); //Post-transmission backoff, so the next frame doesn't grab the medium straight after this one
+				continue;
 			}
+			waitForWork(); //Block until something is queued, ACK'ed or times out
 		}
 
 	}
 	
-	//Throws a beacon to the front of data queue every time the timer fires
+	//An ACK or block ACK and when it arrived
+	private static class ReceivedAck{
+		byte[] packet;
+		long time; //link.clock() when the Receiver got it
+
+		ReceivedAck(byte[] packet, long time){
+			this.packet = packet;
+			this.time = time;
+		}
+	}
+
+	//Smoothed round trip time to one destination
+	private static class RttEstimate{
+		double srtt; //Smoothed round trip time in ms
+		double rttvar; //Round trip time variation in ms
+		long timeout; //The ACK timeout derived from them
+		int samples = 0; //Round trips measured
+	}
+
+	//One EDCA access category: its own per destination queues and contention parameters
+	private static class AccessCategory{
+		String name;
+		int aifsn; //Slots after SIFS the medium must be idle before this category counts down or transmits
+		int cwMin; //Collision window to start from, and to go back to after a success
+		int cwMax; //Largest the collision window grows to
+		HashMap<Short, LinkedList<PendingFrame>> txQueues = new HashMap<Short, LinkedList<PendingFrame>>(); //Data waiting to be transmitted, per destination
+		HashMap<Short, Integer> deficit = new HashMap<Short, Integer>(); //Unused credit of each active destination
+		LinkedList<Short> activeList = new LinkedList<Short>(); //Destinations with queued or outstanding frames in round robin order
+		boolean headGranted = false; //Whether the head of activeList already got its QUANTUM this round
+		int cw; //Collision window, doubled on every collision and back to cwMin once a frame gets through
+		int backoffSlots = -1; //Backoff slots left to count down, -1 if no backoff is pending, kept across deferrals
+		long cwRaised = 0; //link.clock() when a timeout last doubled cw
+		int internalCollisions = 0; //Times a higher priority category won a slot we were also ready in
+
+		AccessCategory(String name, int aifsn, int cwMin, int cwMax){
+			this.name = name;
+			this.aifsn = aifsn;
+			this.cwMin = cwMin;
+			this.cwMax = cwMax;
+			this.cw = cwMin;
+		}
+	}
+
+	//Puts a beacon ahead of all queued data every time the timer fires
 	public class BeaconProbe extends TimerTask{
 		public void run() {
-			if(LinkLayer.diagLevel >= 1) LinkLayer.output.println("Creating Beacon");
-			byte[] beaconPacket = PacketManipulator.buildBeaconPacket((short)LinkLayer.BROADCAST_ADDR, LinkLayer.ourMAC);
-			LinkLayer.sender.dataToTrans.insertElementAt(beaconPacket, 0); //add to head of data vector for sending right away
+			if(link.diagLevel >= 1) output.println("Creating Beacon");
+			byte[] beaconPacket = PacketManipulator.buildBeaconPacket((short)LinkLayer.BROADCAST_ADDR, link.ourMAC, link.clock());
+			synchronized(workLock){
+				PendingFrame beacon = new PendingFrame(beaconPacket, link.clock());
+				beacon.accessCategory = LinkLayer.AC_VOICE;
+				controlQueue.add(beacon); //sent before any voice data for sending right away
+				timer.wake(workLock);
+			}
 		}
 	}
 }
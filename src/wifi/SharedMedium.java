@@ -0,0 +1,228 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-process wireless medium that any number of stations in one JVM can share
+ * Every station hears every other one.  A packet is on the air for a fixed preamble plus a time
+ * per byte, and the sender's transmit() blocks for that long.  Stations sense the medium busy
+ * while anything is on the air, once it has been on long enough to be detected, and packets whose
+ * airtime overlaps collide: every station still
+ * receives them, but garbled, so their CRC check throws them away.
+ * The medium runs on the wall clock, or on a Simulation's clock when the simulation makes it.
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public class SharedMedium {
+	public static final double DEFAULT_MS_PER_BYTE = 0.01; //100 KB/s, so a full packet is 20 ms and MAC timing still dominates
+	public static final double DEFAULT_PREAMBLE_MS = 0.1; //Airtime every packet pays before its first byte
+	private static final long CCA_NANOS = 20000; //How long a packet is on the air before others can sense it, so stations that start together collide
+
+	private double nanosPerByte; //Airtime of one byte
+	private long preambleNanos; //Airtime every packet pays up front
+	private Simulation sim; //null on the wall clock
+	private long startNanos = System.nanoTime(); //nanoTime the medium's clock is measured from
+	private long startMillis; //What clock() reads at startNanos
+	private CopyOnWriteArrayList<Station> stations = new CopyOnWriteArrayList<Station>();
+	private ArrayList<Airing> onAir = new ArrayList<Airing>(); //Packets that may still be on the air, guarded by this
+	private long idleSince = 0; //Nanos since startNanos when the last packet taken off the air ended, guarded by this
+	private long packets = 0; //Packets transmitted, guarded by this
+	private long collisions = 0; //Packets garbled by another one, guarded by this
+
+	//One packet's time on the air
+	private static class Airing{
+		long start; //Nanos since startNanos when it went on the air
+		long end; //Nanos since startNanos when it is off the air
+		boolean collided = false; //Another packet overlapped it
+	}
+
+	/**
+	 * A medium with the default airtime
+	 */
+	public SharedMedium(){
+		this(DEFAULT_MS_PER_BYTE, DEFAULT_PREAMBLE_MS);
+	}
+
+	/**
+	 * @param msPerByte airtime of one byte in ms
+	 * @param preambleMs airtime every packet pays before its first byte in ms
+	 */
+	public SharedMedium(double msPerByte, double preambleMs){
+		this(null, msPerByte, preambleMs);
+	}
+
+	/**
+	 * @param sim the simulation whose clock the medium runs on, or null for the wall clock
+	 * @param msPerByte airtime of one byte in ms
+	 * @param preambleMs airtime every packet pays before its first byte in ms
+	 */
+	SharedMedium(Simulation sim, double msPerByte, double preambleMs){
+		this.sim = sim;
+		this.nanosPerByte = msPerByte * 1000000;
+		this.preambleNanos = (long)(preambleMs * 1000000);
+		this.startMillis = sim != null ? 0 : System.currentTimeMillis(); //Simulations start at 0 so every run reads the same times
+	}
+
+	/**
+	 * Adds a station to the medium
+	 * @return the station's radio
+	 */
+	public Radio attach(){
+		Station station = new Station();
+		stations.add(station);
+		return station;
+	}
+
+	/**
+	 * @return nanos since the medium was made
+	 */
+	private long now(){
+		if(sim != null)
+			return sim.nanos();
+		return System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Puts a packet on the air, blocks for its airtime and hands it to every other station
+	 * @param from the transmitting station
+	 * @param packet the packet
+	 * @return the number of bytes sent
+	 */
+	private int transmit(Station from, byte[] packet){
+		Airing airing = new Airing();
+		synchronized(this){
+			long now = now();
+			airing.start = now;
+			airing.end = now + preambleNanos + (long)(packet.length * nanosPerByte);
+			for(int i=onAir.size()-1; i>=0; i--){
+				Airing other = onAir.get(i);
+				if(other.end <= now){
+					onAir.remove(i); //Off the air already
+					idleSince = Math.max(idleSince, other.end);
+					continue;
+				}
+				if(!other.collided) collisions++;
+				other.collided = true;
+				airing.collided = true;
+			}
+			if(airing.collided) collisions++;
+			onAir.add(airing);
+			packets++;
+		}
+
+		long wait;
+		while((wait = airing.end - now()) > 0){ //A radio can't do anything else while it sends
+			if(sim != null)
+				sim.sleepNanos(wait);
+			else
+				LockSupport.parkNanos(wait);
+		}
+
+		boolean collided;
+		synchronized(this){
+			onAir.remove(airing);
+			idleSince = Math.max(idleSince, airing.end);
+			collided = airing.collided;
+		}
+		byte[] heard = packet.clone(); //Receivers must not see the sender reuse its buffer
+		if(collided && heard.length > 0)
+			heard[heard.length-1] ^= 0xFF; //Garbles the CRC
+		for(Station station : stations){
+			if(station == from)
+				continue;
+			synchronized(station.incoming){
+				station.incoming.add(heard);
+				if(sim != null)
+					sim.signal(station.incoming);
+			}
+		}
+		return packet.length;
+	}
+
+	/**
+	 * @return true if a packet has been on the air long enough to be sensed
+	 */
+	private synchronized boolean inUse(){
+		long now = now();
+		for(Airing airing : onAir){
+			if(airing.start + CCA_NANOS <= now && now < airing.end)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return ms since the last packet went off the air, 0 while one is sensed on it
+	 */
+	private synchronized long getIdleTime(){
+		if(inUse())
+			return 0;
+		long now = now();
+		long lastEnd = idleSince;
+		for(Airing airing : onAir){
+			if(airing.end <= now)
+				lastEnd = Math.max(lastEnd, airing.end);
+		}
+		return (now - lastEnd) / 1000000;
+	}
+
+	/**
+	 * @return the medium's clock in ms, shared by every station on it
+	 */
+	private long clock(){
+		return startMillis + now() / 1000000;
+	}
+
+	/**
+	 * @return a one line summary of the medium's use
+	 */
+	public synchronized String report(){
+		return stations.size()+" stations, "+packets+" packets sent, "+collisions+" garbled by collisions";
+	}
+
+	//A station's radio on this medium
+	private class Station implements Radio{
+		private LinkedBlockingQueue<byte[]> incoming = new LinkedBlockingQueue<byte[]>(); //Packets heard but not received yet
+
+		public int transmit(byte[] packet){
+			return SharedMedium.this.transmit(this, packet);
+		}
+
+		public byte[] receive(){
+			if(sim != null){
+				synchronized(incoming){
+					while(incoming.isEmpty())
+						sim.await(incoming, 0);
+					return incoming.poll();
+				}
+			}
+			while(true){
+				try{
+					return incoming.take();
+				}catch(InterruptedException e){
+					//Like RF, keep listening
+				}
+			}
+		}
+
+		public boolean inUse(){
+			return SharedMedium.this.inUse();
+		}
+
+		public long clock(){
+			return SharedMedium.this.clock();
+		}
+
+		public long getIdleTime(){
+			return SharedMedium.this.getIdleTime();
+		}
+
+		public boolean dataWaiting(){
+			return !incoming.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,375 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TimerTask;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs stations against a virtual clock instead of the wall clock
+ * Stations made with new LinkLayer(mac, output, simulation) share the simulation's SharedMedium,
+ * and their Sender, Receiver and timer work runs in simulated time: every sleep, timed wait and
+ * timer becomes an event on the simulation's queue, and the clock jumps straight to the next
+ * event once every simulated thread is blocked.  Only one simulated thread runs at a time, in an
+ * order fixed by the event queue, and all randomness comes from the seed, so a run with the same
+ * seed and the same stations plays out the same way every time, as fast as the CPU allows.
+ * Application code that calls send() and recv() on simulated stations must run in a thread
+ * started with start(), and wait with sleep() rather than Thread.sleep().
+ * @author Evan Carlin and Ethan Russell
+ * @version 04/03/2016
+ *
+ */
+public class Simulation {
+	private static final long NANOS_PER_MS = 1000000;
+
+	private volatile long now = 0; //Virtual nanos since the simulation began
+	private long eventCount = 0; //Events queued so far, which also orders events due at the same time, guarded by this
+	private long eventsRun = 0; //Events that woke a thread or ran a task, guarded by this
+	private PriorityQueue<Event> events = new PriorityQueue<Event>(); //Wakeups and timer tasks by time, guarded by this
+	private LinkedList<SimThread> ready = new LinkedList<SimThread>(); //Threads that can run now, in the order they became ready, guarded by this
+	private ArrayList<SimThread> waiters = new ArrayList<SimThread>(); //Threads waiting on a monitor, in the order they started waiting, guarded by this
+	private HashMap<TimerTask, Event> taskEvents = new HashMap<TimerTask, Event>(); //Each scheduled task's queued or running event, guarded by this
+	private ThreadLocal<SimThread> current = new ThreadLocal<SimThread>(); //The simulated thread a thread is, if it is one
+	private volatile Thread driver; //The thread inside run(), which hands the baton out
+	private volatile boolean driverTurn = false; //The baton is back with the driver
+	private Random seeds; //Hands out a seed per station
+	private SharedMedium medium;
+	private int threadCount = 0; //Simulated threads started, guarded by this
+
+	//A thread that runs in simulated time
+	private static class SimThread{
+		Thread thread;
+		volatile boolean hasBaton = false; //It may run
+		boolean blocked = false; //Sleeping or waiting, guarded by the simulation
+		int blockCount = 0; //Times it has blocked, so a stale timeout can be told apart, guarded by the simulation
+		Object waitingOn; //The monitor it is waiting on, null while sleeping
+	}
+
+	//Something due at a point in simulated time
+	private static class Event implements Comparable<Event>{
+		long time; //Virtual nanos it is due at
+		long order; //Breaks ties in the order events were queued
+		SimThread thread; //The thread to wake, or null for a task
+		int blockCount; //Which of the thread's waits it ends
+		TimerTask task; //The task to run, or null for a wakeup
+		long period; //Nanos between runs of a repeating task, 0 for once
+		boolean cancelled = false; //Its task was cancelled, so it is skipped when it comes due, guarded by the simulation
+
+		public int compareTo(Event other){
+			if(time != other.time)
+				return Long.compare(time, other.time);
+			return Long.compare(order, other.order);
+		}
+	}
+
+	/**
+	 * A simulation with the default SharedMedium airtime
+	 * @param seed the seed every random choice in the simulation follows from
+	 */
+	public Simulation(long seed){
+		this(seed, SharedMedium.DEFAULT_MS_PER_BYTE, SharedMedium.DEFAULT_PREAMBLE_MS);
+	}
+
+	/**
+	 * @param seed the seed every random choice in the simulation follows from
+	 * @param msPerByte airtime of one byte on the medium in ms
+	 * @param preambleMs airtime every packet pays before its first byte in ms
+	 */
+	public Simulation(long seed, double msPerByte, double preambleMs){
+		this.seeds = new Random(seed);
+		this.medium = new SharedMedium(this, msPerByte, preambleMs);
+	}
+
+	/**
+	 * @return the medium the simulation's stations share
+	 */
+	public SharedMedium medium(){
+		return medium;
+	}
+
+	/**
+	 * @return the simulated time in ms
+	 */
+	public long clock(){
+		return now / NANOS_PER_MS;
+	}
+
+	/**
+	 * @return the simulated time in ns
+	 */
+	long nanos(){
+		return now;
+	}
+
+	/**
+	 * Hands out a random number generator for one station, seeded from the simulation's seed
+	 * @return the generator
+	 */
+	synchronized Random newRandom(){
+		return new Random(seeds.nextLong());
+	}
+
+	/**
+	 * Starts a thread that runs in simulated time, once run() gives it its turn
+	 * @param work what the thread does
+	 * @param name the thread's name
+	 */
+	public void start(Runnable work, String name){
+		SimThread simThread = new SimThread();
+		simThread.thread = new Thread(() -> {
+			current.set(simThread);
+			awaitBaton(simThread, null);
+			try{
+				work.run();
+			}finally{
+				simThread.hasBaton = false; //Done for good
+				returnBaton();
+			}
+		}, name);
+		simThread.thread.setDaemon(true); //Stations never stop on their own
+		synchronized(this){
+			threadCount++;
+			ready.add(simThread);
+		}
+		simThread.thread.start();
+	}
+
+	/**
+	 * Runs the simulation until its clock has moved on by the given time, or until nothing is left
+	 * to happen, in which case the clock jumps to the end of the run
+	 * @param millis the simulated time to run for in ms
+	 */
+	public void run(long millis){
+		long until = now + millis*NANOS_PER_MS;
+		driver = Thread.currentThread();
+		while(true){
+			SimThread next = null;
+			Event task = null;
+			synchronized(this){
+				next = ready.poll();
+				if(next == null){
+					Event event = events.peek();
+					if(event == null || event.time > until){
+						now = until; //Nothing happens before then
+						break;
+					}
+					events.poll();
+					now = Math.max(now, event.time);
+					if(event.task != null){
+						if(event.cancelled)
+							continue;
+						eventsRun++;
+						task = event;
+					}else if(event.thread.blocked && event.blockCount == event.thread.blockCount){ //Timed out rather than woken
+						eventsRun++;
+						unblock(event.thread);
+						next = event.thread;
+					}else
+						continue; //It was woken before its timeout
+				}
+			}
+			if(task != null){
+				runTask(task);
+				continue;
+			}
+			Object monitor = next.waitingOn;
+			next.hasBaton = true;
+			if(monitor != null){
+				synchronized(monitor){
+					monitor.notifyAll(); //It is in monitor.wait(), the others waiting there go back to sleep
+				}
+			}else
+				LockSupport.unpark(next.thread);
+			while(!driverTurn)
+				LockSupport.park(this);
+			driverTurn = false;
+		}
+		driver = null;
+	}
+
+	/**
+	 * Runs a timer task on the driver, and queues its next run if it repeats
+	 * @param event the task's event
+	 */
+	private void runTask(Event event){
+		event.task.run();
+		synchronized(this){
+			if(event.period > 0 && !event.cancelled) //It may have cancelled itself
+				queue(event.task, event.time + event.period, event.period);
+			else
+				taskEvents.remove(event.task, event);
+		}
+	}
+
+	/**
+	 * Blocks a thread started by start() for a span of simulated time, as Thread.sleep() would
+	 * @param millis how long, in ms
+	 */
+	public void sleep(long millis){
+		sleepNanos(millis * NANOS_PER_MS);
+	}
+
+	/**
+	 * Blocks the calling simulated thread for a span of simulated time
+	 * @param nanos how long, in ns
+	 */
+	void sleepNanos(long nanos){
+		SimThread me = self();
+		synchronized(this){
+			block(me, null);
+			queueWakeup(me, now + nanos);
+		}
+		me.hasBaton = false;
+		returnBaton();
+		awaitBaton(me, null);
+	}
+
+	/**
+	 * Blocks the calling simulated thread until signal() is called on a monitor or a timeout passes
+	 * The caller must hold the monitor, which is released while it waits, like Object.wait()
+	 * @param monitor the monitor to wait on
+	 * @param nanos how long to wait at most in ns, 0 to wait until signalled
+	 */
+	void await(Object monitor, long nanos){
+		SimThread me = self();
+		synchronized(this){
+			block(me, monitor);
+			waiters.add(me);
+			if(nanos > 0)
+				queueWakeup(me, now + nanos);
+		}
+		me.hasBaton = false;
+		returnBaton();
+		awaitBaton(me, monitor);
+	}
+
+	/**
+	 * Makes every simulated thread waiting on a monitor runnable, like Object.notifyAll()
+	 * @param monitor the monitor
+	 */
+	synchronized void signal(Object monitor){
+		for(int i=0; i<waiters.size(); ){
+			SimThread waiter = waiters.get(i);
+			if(waiter.waitingOn == monitor){
+				unblock(waiter);
+				ready.add(waiter);
+			}else
+				i++;
+		}
+	}
+
+	/**
+	 * Runs a timer task in simulated time, on the simulation's own thread
+	 * @param task the task
+	 * @param delayNanos ns until its first run
+	 * @param periodNanos ns between runs, 0 to run once
+	 */
+	synchronized void schedule(TimerTask task, long delayNanos, long periodNanos){
+		queue(task, now + delayNanos, periodNanos);
+	}
+
+	/**
+	 * Stops a task given to schedule() from running again, even if it is running right now
+	 * @param task the task
+	 */
+	synchronized void cancel(TimerTask task){
+		Event event = taskEvents.remove(task);
+		if(event != null)
+			event.cancelled = true; //It stays queued until it comes due, taking it out would mean a search
+	}
+
+	/**
+	 * @return a one line summary of the simulation so far
+	 */
+	public synchronized String report(){
+		return "Simulated "+clock()+" ms, "+threadCount+" threads, "+eventsRun+" events run, "+events.size()+" pending; "+medium.report();
+	}
+
+	/**
+	 * Queues a timer task
+	 * Must be called holding this
+	 */
+	private void queue(TimerTask task, long time, long period){
+		Event event = new Event();
+		event.time = time;
+		event.order = eventCount++;
+		event.task = task;
+		event.period = period;
+		events.add(event);
+		taskEvents.put(task, event);
+	}
+
+	/**
+	 * Queues the end of a thread's sleep or timed wait
+	 * Must be called holding this
+	 */
+	private void queueWakeup(SimThread thread, long time){
+		Event event = new Event();
+		event.time = time;
+		event.order = eventCount++;
+		event.thread = thread;
+		event.blockCount = thread.blockCount;
+		events.add(event);
+	}
+
+	/**
+	 * Must be called holding this
+	 */
+	private void block(SimThread thread, Object monitor){
+		thread.blocked = true;
+		thread.blockCount++;
+		thread.waitingOn = monitor;
+	}
+
+	/**
+	 * Must be called holding this
+	 */
+	private void unblock(SimThread thread){
+		thread.blocked = false;
+		waiters.remove(thread);
+	}
+
+	/**
+	 * @return the calling thread's SimThread
+	 */
+	private SimThread self(){
+		SimThread me = current.get();
+		if(me == null)
+			throw new IllegalStateException("Only threads started by the simulation can wait in simulated time");
+		return me;
+	}
+
+	/**
+	 * Hands the baton back to the driver
+	 */
+	private void returnBaton(){
+		driverTurn = true;
+		LockSupport.unpark(driver);
+	}
+
+	/**
+	 * Blocks until the driver gives the thread its turn
+	 * @param me the calling thread
+	 * @param monitor the monitor it holds and waits on, or null to park
+	 */
+	private void awaitBaton(SimThread me, Object monitor){
+		boolean interrupted = false;
+		while(!me.hasBaton){
+			if(monitor == null){
+				LockSupport.park(this);
+				continue;
+			}
+			try{
+				monitor.wait();
+			}catch(InterruptedException e){ //Simulated threads only move when the driver says so
+				interrupted = true;
+			}
+		}
+		me.waitingOn = null;
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+}
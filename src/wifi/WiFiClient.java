@@ -350,15 +350,11 @@ public class WiFiClient implements ActionListener, Runnable {
       public StreamWatcher(WiFiClient display) { this.display = display; }
 
       /**
-       * Block and wait for incoming transmissions.  Repeat.
+       * Block and wait for incoming transmissions.  Repeat.  The link layer's recv() does the
+       * blocking, so there's no need to sleep between calls.
        */
       public void run() {
          for(;;) {
-            try {
-               Thread.sleep(20);
-            } catch (InterruptedException e) {
-               // Do nothing if awakened early
-            }   
             byte[] bytes = theLinkLayer.watchForIncomingData();
             if (bytes != null && bytes.length >= 2) {
                int tmp = ((int)bytes[0]) & 0xFF;